@@ -56,13 +56,22 @@ import java.util.logging.Logger;
  * *This is a factory for {@link BCELClassFile}. This is not a public class, as
  * I expect users to use {@link ClassFileLoaderFactory} interface. This class
  * internally uses the the standard Java ClassLoader to load the resource and
- * construct BCELClassFile object out of it.
+ * construct BCELClassFile object out of it. What it returns is a
+ * {@link CompactClassFile} made from that BCELClassFile, shared with other
+ * loaders through {@link ClassFileCache}.
  *
  * @author Sanjeeb.Sahoo@Sun.COM
  */
 class BCELClassFileLoader implements ClassFileLoader {
 
     private ResourceFinder rf;
+    private static final ClassFileCache.Parser parser = new ClassFileCache.Parser() {
+        // The BCEL object model is not kept, only a compact copy of it.
+        public ClassFile parse(InputStream is, String resourcePath) throws IOException {
+            return new CompactClassFile(new BCELClassFile(is, resourcePath),
+                    ClassFileCache.getInstance().getNameTable());
+        }
+    };
     private static String resourceBundleName = "com.sun.enterprise.tools.verifier.apiscan.LocalStrings";
     private static Logger logger = Logger.getLogger("apiscan.classfile", resourceBundleName); // NOI18N
     private final static String myClassName = "BCELClassFileLoader"; // NOI18N
@@ -113,17 +122,9 @@ class BCELClassFileLoader implements ClassFileLoader {
     public ClassFile load(String externalClassName) throws IOException {
         logger.entering("BCELClassFileLoader", "load", externalClassName); // NOI18N
         String resourcePath = externalClassName.replace('.', '/') + ".class";
-        InputStream is = rf.findResourceAsStream(resourcePath);
-        if (is == null) {
-            throw new IOException(resourcePath + " is not found using " + rf);
-        }
-        try {
-            ClassFile cf = new BCELClassFile(is, resourcePath); // NOI18N
-            matchClassSignature(cf, externalClassName);
-            return cf;
-        } finally {
-            is.close();
-        }
+        ClassFile cf = ClassFileCache.getInstance().load(rf, resourcePath, myClassName, parser);
+        matchClassSignature(cf, externalClassName);
+        return cf;
     }
 
     //This method is neede to be protected against users who are passing us
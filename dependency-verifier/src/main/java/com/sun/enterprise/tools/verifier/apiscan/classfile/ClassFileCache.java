@@ -0,0 +1,311 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.enterprise.tools.verifier.apiscan.classfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A process wide cache of parsed classes, shared by all ClassFileLoaders, so
+ * that a class in a jar used by many modules is parsed only once no matter
+ * how many loaders of the same kind search that jar. Classes are keyed by
+ * the kind of loader, as loaders don't all find the same referenced classes,
+ * and by the jar path, entry name, CRC, size and modification time of the
+ * .class file. Classes found in a directory are keyed by the file path, size
+ * and modification time instead, so a recompiled class is parsed again.
+ * Classes found any other way are not cached.
+ * <p/>
+ * Only immutable {@link ClassFile}s are kept, never a BCEL JavaClass. The
+ * least recently used classes are evicted beyond the number given by the
+ * system property {@link #SIZE_PROPERTY}, 0 turns the cache off. Names of
+ * classes and methods are interned in a {@link NameTable}, which is not
+ * shrunk by evictions, only replaced by {@link #clear()}.
+ * <p/>
+ * Jar files are opened through {@link JarURLConnection}, so they are kept
+ * open by the JDK's jar file cache. A jar rebuilt while it is open is not
+ * noticed, neither by this cache nor by the class loaders reading it.
+ * This class is thread safe.
+ */
+public final class ClassFileCache {
+
+    /**
+     * Name of the system property giving the maximum number of cached classes.
+     */
+    public static final String SIZE_PROPERTY = "apiscan.ClassFileCache.size"; // NOI18N
+
+    private static final int DEFAULT_SIZE = 100000;
+
+    private static final ClassFileCache instance =
+            new ClassFileCache(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+
+    private static Logger logger = Logger.getLogger("apiscan.classfile"); // NOI18N
+    private static final String myClassName = "ClassFileCache"; // NOI18N
+
+    /**
+     * Parses a .class file, see {@link ClassFileCache#load}.
+     */
+    interface Parser {
+        /**
+         * @return an immutable ClassFile, as it may be shared by several
+         *         threads
+         */
+        ClassFile parse(InputStream is, String resourcePath) throws IOException;
+    }
+
+    private final int maxSize;
+    private final Map<Key, ClassFile> classFiles;
+    private long hits;
+    private long misses;
+    private long uncached;
+    private long evictions;
+    private NameTable nameTable = new NameTable();
+
+    public static ClassFileCache getInstance() {
+        return instance;
+    }
+
+    private ClassFileCache(final int maxSize) {
+        this.maxSize = maxSize;
+        classFiles = new LinkedHashMap<Key, ClassFile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, ClassFile> eldest) {
+                if (size() > maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached class for the given resource, or parses it and
+     * caches the result.
+     *
+     * @param rf           where to find the .class file
+     * @param resourcePath path of the .class file, e.g. java/util/Map$Entry.class
+     * @param kind         name of the kind of loader, only classes parsed by
+     *                     the same kind of loader are shared
+     * @throws IOException if the class can't be found or parsed
+     */
+    ClassFile load(ResourceFinder rf, String resourcePath, String kind, Parser parser) throws IOException {
+        Key key = null;
+        InputStream is = null;
+        if (maxSize > 0 && rf instanceof ClassLoaderBasedResourceFinder) {
+            URL url = ((ClassLoaderBasedResourceFinder) rf).findResource(resourcePath);
+            if (url == null) {
+                throw new IOException(resourcePath + " is not found using " + rf);
+            }
+            URLConnection connection = url.openConnection();
+            key = keyOf(kind, connection);
+            if (key != null) {
+                ClassFile cf = get(key);
+                if (cf != null) {
+                    return cf;
+                }
+            }
+            is = connection.getInputStream();
+        } else {
+            is = rf.findResourceAsStream(resourcePath);
+            if (is == null) {
+                throw new IOException(resourcePath + " is not found using " + rf);
+            }
+        }
+        ClassFile cf;
+        try {
+            cf = parser.parse(is, resourcePath);
+        } finally {
+            is.close();
+        }
+        if (key == null) {
+            return cf;
+        }
+        synchronized (this) {
+            misses++;
+        }
+        return put(key, cf);
+    }
+
+    private synchronized ClassFile get(Key key) {
+        ClassFile cf = classFiles.get(key);
+        if (cf != null) {
+            hits++;
+        }
+        return cf;
+    }
+
+    // If another thread parsed the same class in the mean time, keeps and
+    // returns that one.
+    private synchronized ClassFile put(Key key, ClassFile cf) {
+        ClassFile existing = classFiles.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        classFiles.put(key, cf);
+        return cf;
+    }
+
+    // @return null if the connection's resource can't be identified
+    private Key keyOf(String kind, URLConnection connection) throws IOException {
+        if (connection instanceof JarURLConnection) {
+            JarURLConnection jarConnection = (JarURLConnection) connection;
+            JarEntry entry = jarConnection.getJarEntry();
+            if (entry != null) {
+                return new Key(kind, jarConnection.getJarFileURL().toString(), entry.getName(),
+                        entry.getCrc(), entry.getSize(), entry.getTime());
+            }
+        } else if ("file".equals(connection.getURL().getProtocol())) { // NOI18N
+            try {
+                File file = new File(connection.getURL().toURI());
+                return new Key(kind, file.getPath(), "", -1, file.length(), file.lastModified());
+            } catch (URISyntaxException e) {
+                logger.logp(Level.FINE, myClassName, "keyOf", "Not caching " + connection.getURL(), e); // NOI18N
+            }
+        }
+        synchronized (this) {
+            uncached++;
+        }
+        return null;
+    }
+
+    /**
+     * Forgets all cached classes, but not the statistics. Classes loaded
+     * from then on use a new {@link NameTable}, so the names of the old
+     * classes can be collected once nobody uses those classes anymore.
+     */
+    public synchronized void clear() {
+        classFiles.clear();
+        nameTable = new NameTable();
+    }
+
+    /**
+     * @return the table where {@link CompactClassFile}s intern names
+     */
+    synchronized NameTable getNameTable() {
+        return nameTable;
+    }
+
+    public synchronized int size() {
+        return classFiles.size();
+    }
+
+    /**
+     * @return number of loads which found the class in this cache
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return number of loads which had to parse a class this cache could keep
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return number of loads which parsed a class they could not cache
+     */
+    public synchronized long getUncachedCount() {
+        return uncached;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized String toString() {
+        return "ClassFileCache[size = " + classFiles.size() + "/" + maxSize + // NOI18N
+                ", hits = " + hits + ", misses = " + misses + // NOI18N
+                ", uncached = " + uncached + ", evictions = " + evictions + // NOI18N
+                ", names = " + nameTable.size() + "]"; // NOI18N
+    }
+
+    private static final class Key {
+        private final String kind;
+        private final String location;
+        private final String entryName;
+        private final long crc;
+        private final long size;
+        private final long time;
+        private final int hash;
+
+        Key(String kind, String location, String entryName, long crc, long size, long time) {
+            this.kind = kind;
+            this.location = location;
+            this.entryName = entryName;
+            this.crc = crc;
+            this.size = size;
+            this.time = time;
+            int h = kind.hashCode();
+            h = 31 * h + location.hashCode();
+            h = 31 * h + entryName.hashCode();
+            h = 31 * h + (int) (crc ^ (crc >>> 32));
+            h = 31 * h + (int) (size ^ (size >>> 32));
+            hash = 31 * h + (int) (time ^ (time >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return crc == other.crc && size == other.size && time == other.time &&
+                    entryName.equals(other.entryName) && location.equals(other.location) &&
+                    kind.equals(other.kind);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
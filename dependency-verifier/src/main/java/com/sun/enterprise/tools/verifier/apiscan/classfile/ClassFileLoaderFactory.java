@@ -56,6 +56,21 @@ public class ClassFileLoaderFactory {
     private static String resourceBundleName = "com.sun.enterprise.tools.verifier.apiscan.LocalStrings";
     private static Logger logger = Logger.getLogger("apiscan.classfile", resourceBundleName); // NOI18N
     private final static String myClassName = "ClassFileLoaderFactory"; // NOI18N
+
+    /**
+     * Value of the system property apiscan.ClassFileLoader which selects the
+     * default loader, {@link BCELClassFileLoader}.
+     */
+    public static final String BCEL_LOADER = BCELClassFileLoader.class.getName();
+
+    /**
+     * Value of the system property apiscan.ClassFileLoader which selects
+     * {@link ConstantPoolClassFileLoader}. It reads class files directly
+     * instead of building BCEL's object model, which is much faster when
+     * only referenced class names are needed.
+     */
+    public static final String CONSTANT_POOL_LOADER = ConstantPoolClassFileLoader.class.getName();
+
     /**
      * a factory method to create ClassFileLoader instance. It decides which
      * kind of loader class to instantioate based on the class name supplied by
@@ -68,18 +83,31 @@ public class ClassFileLoaderFactory {
      * @throws RuntimeException If it could not instantiate the loader type
      *                          requested. The actual error is wrapped in this
      *                          exception.
+     * @see #BCEL_LOADER
+     * @see #CONSTANT_POOL_LOADER
      */
     public static ClassFileLoader newInstance(Object[] args)
             throws RuntimeException {
         logger.entering(myClassName, "newInstance", args); // NOI18N
         String loaderClassName = System.getProperty("apiscan.ClassFileLoader");
         if (loaderClassName == null) {
-            loaderClassName =
-                    com.sun.enterprise.tools.verifier.apiscan.classfile.BCELClassFileLoader.class.getName();
+            loaderClassName = BCEL_LOADER;
             logger.logp(Level.FINE, myClassName, "newInstance", // NOI18N
                     "System Property apiscan.ClassFileLoader is null, so defaulting to " + // NOI18N
                     loaderClassName);
         }
+        return newInstance(loaderClassName, args);
+    }
+
+    /**
+     * Same as {@link #newInstance(Object[])}, except that the type of loader
+     * is given instead of being read from the system property.
+     *
+     * @param loaderClassName name of the ClassFileLoader class, e.g.,
+     *                        {@link #CONSTANT_POOL_LOADER}
+     */
+    public static ClassFileLoader newInstance(String loaderClassName, Object[] args)
+            throws RuntimeException {
         try {
             Class clazz = Class.forName(loaderClassName);
             Object o = null;
@@ -42,6 +42,7 @@
 package com.sun.enterprise.tools.verifier.apiscan.classfile;
 
 import java.io.InputStream;
+import java.net.URL;
 
 /**
  * @author sanjeeb.sahoo@oracle.com
@@ -57,4 +58,12 @@ public class ClassLoaderBasedResourceFinder implements ResourceFinder {
     public InputStream findResourceAsStream(String name) {
         return cl.getResourceAsStream(name);
     }
+
+    /**
+     * @return the URL of the resource, used by {@link ClassFileCache} to
+     *         identify the .class file, or null if it is not found
+     */
+    public URL findResource(String name) {
+        return cl.getResource(name);
+    }
 }
@@ -108,7 +108,8 @@ public class ClosureCompilerImpl implements ClosureCompiler {
          * both ClassFileLoader & ClassClosureCompiler product types.
          */
         if(loader instanceof BCELClassFileLoader ||
-                loader instanceof BCELClassFileLoader1) {
+                loader instanceof BCELClassFileLoader1 ||
+                loader instanceof ConstantPoolClassFileLoader) {
             imp = new BCELClosureCompilerImpl(loader);
         } else {
             throw new RuntimeException("Unknown loader type [" + loader + "]");
@@ -0,0 +1,244 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.enterprise.tools.verifier.apiscan.classfile;
+
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This is an implementation of {@link ClassFile} interface which keeps what
+ * another ClassFile tells about a class in a few int arrays. Class names,
+ * method names and descriptors are ids in a {@link NameTable}, so a name used
+ * by many classes is kept once. The table is shared and only ever grows, it
+ * is kept as long as any CompactClassFile using it, see
+ * {@link ClassFileCache#clear()}. Nothing
+ * of the ClassFile it is made from is retained, so the BCEL JavaClass or
+ * parser structures behind it can be collected right away.
+ * <p/>
+ * Referenced class names and methods are returned as read only views over
+ * the arrays, nothing is copied. It is immutable, hence thread safe.
+ * This is NOT a public class. Access thru' {@link ClassFile} interface.
+ */
+final class CompactClassFile implements ClassFile {
+
+    private static final int FLAG_PUBLIC = 1;
+    private static final int FLAG_INTERFACE = 2;
+
+    // class names in internal form, method names and descriptors
+    private final NameTable names;
+    private final int name;
+    private final int superClassName;
+    private final int[] interfaceNames;
+    private final int flags;
+    // sorted, so that contains() can do a binary search
+    private final int[] referencedClassNames;
+    private final int[] methodNames;
+    private final int[] methodDescriptors;
+    private final int[] methodAccessFlags;
+
+    /**
+     * @param names where names are interned, usually
+     *              {@link ClassFileCache#getNameTable()}
+     */
+    CompactClassFile(ClassFile cf, NameTable names) {
+        this.names = names;
+        name = names.internClassName(cf.getInternalName());
+        superClassName = names.internClassName(cf.getInternalNameOfSuperClass());
+        // not getInternalNamesOfInterfaces(), BCELClassFile converts BCEL's
+        // own array in place
+        String[] interfaces = cf.getNamesOfInterfaces();
+        interfaceNames = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceNames[i] = names.internClassName(Util.convertToInternalClassName(interfaces[i]));
+        }
+        flags = (cf.isPublic() ? FLAG_PUBLIC : 0) | (cf.isInterface() ? FLAG_INTERFACE : 0);
+        Collection<?> internalNames = cf.getAllReferencedClassNamesInInternalForm();
+        int[] ids = new int[internalNames.size()];
+        int n = 0;
+        for (Object internalName : internalNames) {
+            ids[n++] = names.internClassName((String) internalName);
+        }
+        Arrays.sort(ids);
+        referencedClassNames = ids;
+        // BCELClassFile only knows its methods once its references are computed.
+        Collection<? extends Method> methods = cf.getMethods();
+        methodNames = new int[methods.size()];
+        methodDescriptors = new int[methods.size()];
+        methodAccessFlags = new int[methods.size()];
+        n = 0;
+        for (Method m : methods) {
+            methodNames[n] = names.intern(m.getName());
+            methodDescriptors[n] = names.intern(m.getDescriptor());
+            methodAccessFlags[n] = m.getAccess();
+            n++;
+        }
+    }
+
+    /* Now the ClassFile interface implementation methods */
+
+    //See ClassFile interface for description.
+    public Collection getAllReferencedClassNamesInInternalForm() {
+        return new ClassNames(false);
+    }
+
+    public Collection<String> getAllReferencedClassNames() {
+        return new ClassNames(true);
+    }
+
+    public String getName() {
+        return names.getExternal(name);
+    }
+
+    public String getInternalName() {
+        return names.get(name);
+    }
+
+    public String getPackageName() {
+        return Util.getPackageName(getName());
+    }
+
+    public Collection<? extends Method> getMethods() {
+        return new AbstractList<Method>() {
+            public Method get(int index) {
+                return new MethodSummary(CompactClassFile.this,
+                        names.get(methodNames[index]),
+                        names.get(methodDescriptors[index]),
+                        methodAccessFlags[index]);
+            }
+
+            public int size() {
+                return methodNames.length;
+            }
+        };
+    }
+
+    public Method getMethod(MethodRef methodRef) {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getNameOfSuperClass() {
+        return names.getExternal(superClassName);
+    }
+
+    public String getInternalNameOfSuperClass() {
+        return names.get(superClassName);
+    }
+
+    public String[] getNamesOfInterfaces() {
+        String[] result = new String[interfaceNames.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = names.getExternal(interfaceNames[i]);
+        }
+        return result;
+    }
+
+    public String[] getInternalNamesOfInterfaces() {
+        String[] result = new String[interfaceNames.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = names.get(interfaceNames[i]);
+        }
+        return result;
+    }
+
+    public boolean isInterface() {
+        return (flags & FLAG_INTERFACE) != 0;
+    }
+
+    public boolean isPublic() {
+        return (flags & FLAG_PUBLIC) != 0;
+    }
+
+    public String toString() {
+        return
+                "External Name: " + getName() + "\n" + // NOI18N
+                "Internal Name: " + getInternalName() + "\n" + // NOI18N
+                "Referenced Classes: " + getAllReferencedClassNamesInInternalForm(); // NOI18N
+    }
+
+    // Read only view of referenced class names in internal or external form.
+    private class ClassNames extends AbstractCollection<String> {
+        private final boolean external;
+
+        ClassNames(boolean external) {
+            this.external = external;
+        }
+
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next;
+
+                public boolean hasNext() {
+                    return next < referencedClassNames.length;
+                }
+
+                public String next() {
+                    if (next == referencedClassNames.length) {
+                        throw new NoSuchElementException();
+                    }
+                    int id = referencedClassNames[next++];
+                    return external ? names.getExternal(id) : names.get(id);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        public int size() {
+            return referencedClassNames.length;
+        }
+
+        public boolean contains(Object o) {
+            if (!(o instanceof String)) {
+                return false;
+            }
+            String internalName = external ?
+                    Util.convertToInternalClassName((String) o) : (String) o;
+            int id = names.find(internalName);
+            return id != -1 && Arrays.binarySearch(referencedClassNames, id) >= 0;
+        }
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.enterprise.tools.verifier.apiscan.classfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * This is an implementation of {@link ClassFile} interface which reads the
+ * class file format directly instead of building a BCEL JavaClass. Only the
+ * constant pool, the descriptors of fields and methods and the Signature
+ * attributes are looked at, code and all other attributes are skipped. So
+ * referenced class names are those of {@link BCELClassFile} plus any class
+ * that only appears as a type argument in a generic signature.
+ * It is immutable, hence thread safe.
+ * This is NOT a public class. Access thru' {@link ClassFile} interface.
+ * Use {@link ClassFileLoaderFactory} to create new instances of this class.
+ */
+class ConstantPoolClassFile implements ClassFile {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_INTERFACE = 0x0200;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Float = 4;
+    private static final int CONSTANT_Long = 5;
+    private static final int CONSTANT_Double = 6;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_InterfaceMethodref = 11;
+    private static final int CONSTANT_NameAndType = 12;
+    private static final int CONSTANT_MethodHandle = 15;
+    private static final int CONSTANT_MethodType = 16;
+    private static final int CONSTANT_Dynamic = 17;
+    private static final int CONSTANT_InvokeDynamic = 18;
+    private static final int CONSTANT_Module = 19;
+    private static final int CONSTANT_Package = 20;
+
+    private static final String SIGNATURE = "Signature"; // NOI18N
+
+    private static Logger logger = Logger.getLogger("apiscan.classfile"); // NOI18N
+    private static final String myClassName = "apiscan.classfile.ConstantPoolClassFile"; // NOI18N
+
+    private final String name;
+    private final String superClassName;
+    private final String[] interfaceNames;
+    private final int accessFlags;
+    private final Set<String> classNames;
+    private final List<MethodSummary> methods;
+
+    /**
+     * @param bytes  content of the .class file. It is not retained, so the
+     *               caller can reuse the array.
+     * @param length number of valid bytes in the array
+     * @throws IOException if the content is not a well formed class file
+     */
+    public ConstantPoolClassFile(byte[] bytes, int length) throws IOException {
+        Parser parser = new Parser(bytes, length);
+        try {
+            parser.parse();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated or malformed class file " + // NOI18N
+                    (parser.name != null ? parser.name : ""), e);
+        }
+        logger.entering(myClassName, "<init>(byte[], int)", parser.name); // NOI18N
+        name = parser.name;
+        superClassName = parser.superClassName;
+        interfaceNames = parser.interfaceNames;
+        accessFlags = parser.accessFlags;
+        classNames = Collections.unmodifiableSet(parser.classNames);
+        List<MethodSummary> methods = new ArrayList<MethodSummary>(parser.methodNames.size());
+        for (int i = 0; i < parser.methodNames.size(); i++) {
+            methods.add(new MethodSummary(this, parser.methodNames.get(i),
+                    parser.methodDescriptors.get(i), parser.methodAccessFlags[i]));
+        }
+        this.methods = Collections.unmodifiableList(methods);
+    }
+
+    /* Now the ClassFile interface implementation methods */
+
+    //See ClassFile interface for description.
+    public Collection getAllReferencedClassNamesInInternalForm() {
+        return classNames;
+    }
+
+    public Collection<String> getAllReferencedClassNames() {
+        HashSet<String> extClassNames = new HashSet<String>(classNames.size());
+        for (String className : classNames) {
+            extClassNames.add(Util.convertToExternalClassName(className));
+        }
+        return extClassNames;
+    }
+
+    //See ClassFile interface for description.
+    public String getName() {
+        return name;
+    }
+
+    //See ClassFile interface for description.
+    public String getInternalName() {
+        return Util.convertToInternalClassName(name);
+    }
+
+    //See ClassFile interface for description.
+    public String getPackageName() {
+        return Util.getPackageName(name);
+    }
+
+    public Collection<? extends Method> getMethods() {
+        return methods;
+    }
+
+    public Method getMethod(MethodRef methodRef) {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getNameOfSuperClass() {
+        return superClassName;
+    }
+
+    public String getInternalNameOfSuperClass() {
+        return Util.convertToInternalClassName(superClassName);
+    }
+
+    public String[] getNamesOfInterfaces() {
+        return interfaceNames.clone();
+    }
+
+    public String[] getInternalNamesOfInterfaces() {
+        String[] result = getNamesOfInterfaces();
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = Util.convertToInternalClassName(result[i]);
+        }
+        return result;
+    }
+
+    public boolean isInterface() {
+        return (accessFlags & ACC_INTERFACE) != 0;
+    }
+
+    public boolean isPublic() {
+        return (accessFlags & ACC_PUBLIC) != 0;
+    }
+
+    public String toString() {
+        return
+                "External Name: " + getName() + "\n" + // NOI18N
+                "Internal Name: " + getInternalName() + "\n" + // NOI18N
+                "Referenced Classes: " + classNames; // NOI18N
+    }
+
+    /**
+     * Reads a class file in one pass. Strings are only created for class
+     * names, method names and method descriptors; everything else is looked
+     * at in place.
+     */
+    private static class Parser {
+        private final byte[] b;
+        private final int length;
+        private int pos;
+        // offset of the tag of each constant pool entry
+        private int[] offsets;
+        // holds the decoded content of one Utf8 constant
+        private char[] chars = new char[128];
+
+        String name;
+        String superClassName;
+        String[] interfaceNames;
+        int accessFlags;
+        final Set<String> classNames = new HashSet<String>();
+        final List<String> methodNames = new ArrayList<String>();
+        final List<String> methodDescriptors = new ArrayList<String>();
+        int[] methodAccessFlags;
+
+        Parser(byte[] b, int length) {
+            this.b = b;
+            this.length = length;
+        }
+
+        void parse() throws IOException {
+            if (length < 10 || u4() != MAGIC) {
+                throw new IOException("Not a class file"); // NOI18N
+            }
+            pos += 4; // minor and major version
+            readConstantPool();
+            accessFlags = u2();
+            name = Util.convertToExternalClassName(className(u2()));
+            int superIndex = u2();
+            // Just like BCEL, java.lang.Object is its own super class.
+            superClassName = superIndex != 0 ?
+                    Util.convertToExternalClassName(className(superIndex)) : "java.lang.Object"; // NOI18N
+            interfaceNames = new String[u2()];
+            for (int i = 0; i < interfaceNames.length; i++) {
+                interfaceNames[i] = Util.convertToExternalClassName(className(u2()));
+            }
+            int fieldCount = u2();
+            for (int i = 0; i < fieldCount; i++) {
+                pos += 2; // access flags
+                pos += 2; // name
+                addDescriptor(u2());
+                readAttributes();
+            }
+            int methodCount = u2();
+            methodAccessFlags = new int[methodCount];
+            for (int i = 0; i < methodCount; i++) {
+                methodAccessFlags[i] = u2();
+                methodNames.add(utf8(u2()));
+                int descriptorIndex = u2();
+                methodDescriptors.add(utf8(descriptorIndex));
+                addDescriptor(descriptorIndex);
+                readAttributes();
+            }
+            readAttributes();
+            for (int i = 1; i < offsets.length; i++) {
+                if (offsets[i] != 0 && b[offsets[i]] == CONSTANT_Class) {
+                    int nameIndex = readU2(offsets[i] + 1);
+                    int n = decode(nameIndex);
+                    if (chars[0] == '[') {
+                        addTypes(n);
+                    } else {
+                        classNames.add(new String(chars, 0, n));
+                    }
+                }
+            }
+        }
+
+        private void readConstantPool() throws IOException {
+            int count = u2();
+            offsets = new int[count];
+            for (int i = 1; i < count; i++) {
+                offsets[i] = pos;
+                int tag = u1();
+                switch (tag) {
+                    case CONSTANT_Utf8:
+                        int len = u2();
+                        pos += len;
+                        break;
+                    case CONSTANT_Class:
+                    case CONSTANT_String:
+                    case CONSTANT_MethodType:
+                    case CONSTANT_Module:
+                    case CONSTANT_Package:
+                        pos += 2;
+                        break;
+                    case CONSTANT_MethodHandle:
+                        pos += 3;
+                        break;
+                    case CONSTANT_Integer:
+                    case CONSTANT_Float:
+                    case CONSTANT_Fieldref:
+                    case CONSTANT_Methodref:
+                    case CONSTANT_InterfaceMethodref:
+                    case CONSTANT_NameAndType:
+                    case CONSTANT_Dynamic:
+                    case CONSTANT_InvokeDynamic:
+                        pos += 4;
+                        break;
+                    case CONSTANT_Long:
+                    case CONSTANT_Double:
+                        pos += 8;
+                        i++; // takes two entries
+                        break;
+                    default:
+                        throw new IOException("Unknown constant pool tag " + tag + // NOI18N
+                                " at offset " + (pos - 1)); // NOI18N
+                }
+            }
+        }
+
+        // Compares bytes rather than indexes, as nothing requires a compiler
+        // to have a single "Signature" constant.
+        private boolean isSignature(int utf8Index) {
+            int offset = offsets[utf8Index];
+            if (b[offset] != CONSTANT_Utf8 || readU2(offset + 1) != SIGNATURE.length()) {
+                return false;
+            }
+            for (int i = 0; i < SIGNATURE.length(); i++) {
+                if (b[offset + 3 + i] != SIGNATURE.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Reads the attributes at the current position, only Signature is
+        // looked at.
+        private void readAttributes() {
+            int count = u2();
+            for (int i = 0; i < count; i++) {
+                int nameIndex = u2();
+                int len = u4();
+                if (isSignature(nameIndex)) {
+                    addDescriptor(readU2(pos));
+                }
+                pos += len;
+            }
+        }
+
+        private void addDescriptor(int utf8Index) {
+            addTypes(decode(utf8Index));
+        }
+
+        private String className(int classIndex) {
+            return utf8(readU2(offsets[classIndex] + 1));
+        }
+
+        private String utf8(int index) {
+            int n = decode(index); // may replace chars
+            return new String(chars, 0, n);
+        }
+
+        /**
+         * Decodes the Utf8 constant with the given index into {@link #chars}.
+         *
+         * @return number of chars
+         */
+        private int decode(int index) {
+            int offset = offsets[index];
+            int len = readU2(offset + 1);
+            checkBounds(offset + 3 + len);
+            if (chars.length < len) {
+                chars = new char[Math.max(len, chars.length * 2)];
+            }
+            int n = 0;
+            for (int i = offset + 3, end = i + len; i < end; ) {
+                int c = b[i++] & 0xff;
+                if (c < 0x80) {
+                    chars[n++] = (char) c;
+                } else if ((c & 0xe0) == 0xc0) {
+                    chars[n++] = (char) (((c & 0x1f) << 6) | (b[i++] & 0x3f));
+                } else {
+                    chars[n++] = (char) (((c & 0x0f) << 12) | ((b[i++] & 0x3f) << 6) | (b[i++] & 0x3f));
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Adds the names of classes in the descriptor or generic signature
+         * held by the first n entries of {@link #chars}. Primitive types and
+         * type variables are skipped.
+         */
+        private void addTypes(int n) {
+            int i = 0;
+            if (n > 0 && chars[0] == '<') {
+                i = addFormalTypeParameters(1, n);
+            }
+            while (i < n) {
+                char c = chars[i];
+                if (c == 'L') {
+                    i = addClassType(i + 1, n);
+                } else if (c == 'T') {
+                    i = skipTypeVariable(i, n);
+                } else {
+                    i++; // '(', ')', '^', '[' or a primitive type
+                }
+            }
+        }
+
+        // e.g. <K:Ljava/lang/Object;V::Ljava/lang/Comparable<TV;>;>
+        private int addFormalTypeParameters(int i, int n) {
+            while (i < n && chars[i] != '>') {
+                while (i < n && chars[i] != ':') {
+                    i++; // type parameter name
+                }
+                while (i < n && chars[i] == ':') {
+                    i++;
+                    if (chars[i] != ':' && chars[i] != '>') {
+                        i = addType(i, n);
+                    }
+                }
+            }
+            return i + 1;
+        }
+
+        private int addType(int i, int n) {
+            while (chars[i] == '[') {
+                i++;
+            }
+            switch (chars[i]) {
+                case 'L':
+                    return addClassType(i + 1, n);
+                case 'T':
+                    return skipTypeVariable(i, n);
+                default:
+                    return i + 1;
+            }
+        }
+
+        // i is just after the 'L'. Inner classes of parameterized types are
+        // written as Lp/Outer<TT;>.Inner; and named p/Outer$Inner.
+        private int addClassType(int i, int n) {
+            int start = i;
+            int end = -1;
+            String className = null;
+            while (i < n) {
+                char c = chars[i];
+                if (c == ';' || c == '.') {
+                    String simpleName = new String(chars, start, (end < 0 ? i : end) - start);
+                    className = className == null ? simpleName : className + '$' + simpleName;
+                    if (c == ';') {
+                        classNames.add(className);
+                        return i + 1;
+                    }
+                    start = ++i;
+                    end = -1;
+                } else if (c == '<') {
+                    end = i;
+                    i = addTypeArguments(i + 1, n);
+                } else {
+                    i++;
+                }
+            }
+            return n;
+        }
+
+        private int addTypeArguments(int i, int n) {
+            while (i < n && chars[i] != '>') {
+                char c = chars[i];
+                if (c == '*') {
+                    i++;
+                } else if (c == '+' || c == '-') {
+                    i = addType(i + 1, n);
+                } else {
+                    i = addType(i, n);
+                }
+            }
+            return i + 1;
+        }
+
+        private int skipTypeVariable(int i, int n) {
+            while (i < n && chars[i] != ';') {
+                i++;
+            }
+            return i + 1;
+        }
+
+        private int u1() {
+            checkBounds(pos + 1);
+            return b[pos++] & 0xff;
+        }
+
+        private int u2() {
+            int v = readU2(pos);
+            pos += 2;
+            return v;
+        }
+
+        private int u4() {
+            checkBounds(pos + 4);
+            int v = ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16) |
+                    ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+            pos += 4;
+            return v;
+        }
+
+        private int readU2(int offset) {
+            checkBounds(offset + 2);
+            return ((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff);
+        }
+
+        // The array may be longer than the class file, so bytes past its
+        // end must not be read.
+        private void checkBounds(int end) {
+            if (end > length) {
+                throw new ArrayIndexOutOfBoundsException(end - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.enterprise.tools.verifier.apiscan.classfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This is a factory for {@link ConstantPoolClassFile}. It finds .class files
+ * the same way as {@link BCELClassFileLoader}, but parses them without BCEL,
+ * and returns a {@link CompactClassFile} made from the parsed class.
+ * Select it by setting the system property apiscan.ClassFileLoader to the
+ * name of this class, see {@link ClassFileLoaderFactory}.
+ * This is not a public class, as I expect users to use
+ * {@link ClassFileLoaderFactory} interface.
+ */
+class ConstantPoolClassFileLoader implements ClassFileLoader {
+
+    private ResourceFinder rf;
+    // class file content is read into this buffer, which is reused by every load
+    private byte[] buffer = new byte[8192];
+    private final ClassFileCache.Parser parser = new ClassFileCache.Parser() {
+        public ClassFile parse(InputStream is, String resourcePath) throws IOException {
+            ClassFile cf;
+            synchronized (ConstantPoolClassFileLoader.this) {
+                int length = read(is); // may replace buffer
+                cf = new ConstantPoolClassFile(buffer, length);
+            }
+            return new CompactClassFile(cf, ClassFileCache.getInstance().getNameTable());
+        }
+    };
+    private static String resourceBundleName = "com.sun.enterprise.tools.verifier.apiscan.LocalStrings";
+    private static Logger logger = Logger.getLogger("apiscan.classfile", resourceBundleName); // NOI18N
+    private final static String myClassName = "ConstantPoolClassFileLoader"; // NOI18N
+
+    /**
+     * Creates a new instance of ConstantPoolClassFileLoader.
+     *
+     * @param cp that will be used to create a new java.net.URLClassLoader. In
+     *           subsequent load operations, this classloader will be used.
+     */
+    public ConstantPoolClassFileLoader(String cp) {
+        ArrayList<URL> urls = new ArrayList<URL>();
+        for (StringTokenizer st = new StringTokenizer(cp, File.pathSeparator);
+             st.hasMoreTokens();) {
+            String entry = st.nextToken();
+            try {
+                urls.add(new File(entry).toURI().toURL());
+            } catch (MalformedURLException e) {
+                logger.logp(Level.WARNING, myClassName, "init<>", getClass().getName() + ".exception1", new Object[]{entry});
+                logger.log(Level.WARNING, "", e);
+            }
+        }
+        // Only the boot class loader as parent, just like BCELClassFileLoader.
+        final ClassLoader cl = new URLClassLoader(urls.toArray(new URL[0]), null);
+        rf = new ClassLoaderBasedResourceFinder(cl);
+    }
+
+    /**
+     * Creates a new instance of ConstantPoolClassFileLoader.
+     *
+     * @param cl is the classloader that will be used in subsequent load
+     *           operations.
+     */
+    public ConstantPoolClassFileLoader(ClassLoader cl) {
+        rf = new ClassLoaderBasedResourceFinder(cl);
+    }
+
+    public ConstantPoolClassFileLoader(ResourceFinder rf) {
+        this.rf = rf;
+    }
+
+    //See corresponding method of ClassFileLoader
+    public ClassFile load(String externalClassName) throws IOException {
+        logger.entering(myClassName, "load", externalClassName); // NOI18N
+        String resourcePath = externalClassName.replace('.', '/') + ".class";
+        ClassFile cf = ClassFileCache.getInstance().load(rf, resourcePath, myClassName, parser);
+        matchClassSignature(cf, externalClassName);
+        return cf;
+    }
+
+    // Reads the whole stream into buffer, growing it as needed. Caller must
+    // hold the lock of this loader.
+    private int read(InputStream is) throws IOException {
+        int length = 0;
+        int n;
+        while ((n = is.read(buffer, length, buffer.length - length)) != -1) {
+            length += n;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        return length;
+    }
+
+    //This method is neede to be protected against users who are passing us
+    //internal class names instead of external class names or
+    //when the file actually represents some other class, but it isnot
+    //available in in proper package hierarchy.
+    private void matchClassSignature(ClassFile cf, String externalClassName)
+            throws IOException {
+        String nameOfLoadedClass = cf.getName();
+        if (!nameOfLoadedClass.equals(externalClassName)) {
+            throw new IOException(externalClassName + ".class represents " +
+                    cf.getName() +
+                    ". Perhaps your package name is incorrect or you passed the " +
+                    "name using internal form instead of using external form.");
+        }
+    }
+}
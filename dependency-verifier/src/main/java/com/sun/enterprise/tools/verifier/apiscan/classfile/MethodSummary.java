@@ -0,0 +1,105 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.enterprise.tools.verifier.apiscan.classfile;
+
+import java.util.Collection;
+
+/**
+ * An immutable {@link Method} which, like {@link BCELMethod}, only knows about
+ * its name, descriptor and access flags. It is used by class files which
+ * don't keep any parser structure around.
+ */
+class MethodSummary implements Method {
+
+    private static final int ACC_NATIVE = 0x0100;
+
+    private final ClassFile owningClass;
+    private final String name;
+    private final String descriptor;
+    private final int access;
+
+    MethodSummary(ClassFile owningClass, String name, String descriptor, int access) {
+        this.owningClass = owningClass;
+        this.name = name;
+        this.descriptor = descriptor;
+        this.access = access;
+    }
+
+    public ClassFile getOwningClass() {
+        return owningClass;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public int getAccess() {
+        return access;
+    }
+
+    public String getSignature() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String[] getExceptions() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Collection<MethodRef> getReferencedMethods() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Collection<String> getReferencedClasses() {
+        throw new UnsupportedOperationException();
+    }
+
+    public MethodRef getSelfReference() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean isNative() {
+        return (access & ACC_NATIVE) != 0;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.enterprise.tools.verifier.apiscan.classfile;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gives every distinct name a small int id, so that {@link CompactClassFile}
+ * can refer to names with primitive arrays and every name is kept once no
+ * matter how many classes use it. Ids are never reused and names are never
+ * forgotten, so a table grows with the number of distinct names seen, until
+ * it is dropped along with every CompactClassFile using it. The table in use
+ * is the one of {@link ClassFileCache}, which replaces it on clear().
+ * <p/>
+ * Looking up a name by id takes no lock. This class is thread safe.
+ */
+final class NameTable {
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    // Replaced, never modified, once ids are handed out for its elements.
+    private volatile String[] names = new String[1024];
+    // External form of class names, null for other names.
+    private volatile String[] externalNames = new String[1024];
+    private int size;
+
+    /**
+     * @return the id of the name, adding the name if it is new
+     */
+    synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (size == names.length) {
+            int capacity = size * 2;
+            externalNames = Arrays.copyOf(externalNames, capacity);
+            names = Arrays.copyOf(names, capacity);
+        }
+        names[size] = name;
+        ids.put(name, size);
+        return size++;
+    }
+
+    /**
+     * Like {@link #intern}, but also keeps the external form of the name.
+     *
+     * @param internalName a class name in internal form
+     */
+    synchronized int internClassName(String internalName) {
+        int id = intern(internalName);
+        if (externalNames[id] == null) {
+            externalNames[id] = Util.convertToExternalClassName(internalName);
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of the name, or -1 if it was never added
+     */
+    synchronized int find(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @param id an id returned by {@link #intern}
+     */
+    String get(int id) {
+        return names[id];
+    }
+
+    /**
+     * @param id an id returned by {@link #internClassName}
+     * @return the name in external form, e.g. java.util.Map$Entry for
+     *         java/util/Map$Entry
+     */
+    String getExternal(int id) {
+        return externalNames[id];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+}
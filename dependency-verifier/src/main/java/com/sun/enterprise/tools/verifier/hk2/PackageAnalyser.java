@@ -44,6 +44,7 @@ import com.sun.enterprise.module.ModuleDefinition;
 import com.sun.enterprise.module.ModuleDependency;
 import com.sun.enterprise.module.Repository;
 import com.sun.enterprise.tools.verifier.apiscan.classfile.ClassFile;
+import com.sun.enterprise.tools.verifier.apiscan.classfile.ClassFileCache;
 import com.sun.enterprise.tools.verifier.apiscan.classfile.ClassFileLoader;
 import com.sun.enterprise.tools.verifier.apiscan.classfile.ClassFileLoaderFactory;
 import com.sun.enterprise.tools.verifier.apiscan.classfile.Util;
@@ -1162,6 +1163,7 @@ public class PackageAnalyser {
             System.out.println("Total number of exported packages = " + exportedPkgs.size());
             System.out.println("Total number of duplicate-packages = " + splitPkgs.size());
             System.out.println("Total number of unused-packages = " + totalUnusedPkgs);
+            System.out.println("Class file cache: " + ClassFileCache.getInstance());
         }
     }
 
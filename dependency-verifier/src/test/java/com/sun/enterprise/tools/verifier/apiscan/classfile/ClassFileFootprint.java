@@ -0,0 +1,167 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.enterprise.tools.verifier.apiscan.classfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Measures how much heap the ClassFile implementations retain. It parses
+ * every class of the given jars, calls getAllReferencedClassNames() and
+ * getMethods() on it like the analysers do, keeps the results and reports
+ * the retained heap per 10,000 classes for:
+ * <ul>
+ * <li>{@link BCELClassFile}, which keeps the BCEL JavaClass</li>
+ * <li>{@link ConstantPoolClassFile}, which keeps sets and lists of Strings</li>
+ * <li>{@link CompactClassFile}, including its {@link NameTable}</li>
+ * </ul>
+ * It is part of the test sources, so it is not shipped. Usage, after
+ * mvn test-compile:
+ * <blockquote><pre>
+ * java -cp target/classes:target/test-classes:&lt;bcel jar&gt; \
+ *      com.sun.enterprise.tools.verifier.apiscan.classfile.ClassFileFootprint a.jar b.jar ...
+ * </pre></blockquote>
+ */
+public class ClassFileFootprint {
+
+    private static final int BCEL = 0;
+    private static final int CONSTANT_POOL = 1;
+    private static final int COMPACT = 2;
+    // only used by the CompactClassFiles measured here, so it is part of their footprint
+    private static final NameTable nameTable = new NameTable();
+    private static final String[] KINDS = {"BCELClassFile", "ConstantPoolClassFile", "CompactClassFile"}; // NOI18N
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage : java " + ClassFileFootprint.class.getName() + // NOI18N
+                    " <jar file(s)>"); // NOI18N
+            System.exit(1);
+        }
+        List<String> names = new ArrayList<String>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        for (String jar : args) {
+            read(new File(jar), names, contents);
+        }
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            long before = usedHeap();
+            List<ClassFile> classFiles = new ArrayList<ClassFile>(contents.size());
+            for (int i = 0; i < contents.size(); i++) {
+                try {
+                    ClassFile cf = parse(kind, names.get(i), contents.get(i));
+                    cf.getAllReferencedClassNames();
+                    cf.getMethods();
+                    classFiles.add(cf);
+                } catch (Exception e) {
+                    // not a class this parser can read, left out of the count
+                }
+            }
+            // the list itself is not part of the footprint
+            long retained = usedHeap() - before - 16L * classFiles.size();
+            System.out.println(KINDS[kind] + ": " + classFiles.size() + " classes, " + // NOI18N
+                    retained * 10000 / Math.max(1, classFiles.size()) / 1024 + " KB per 10,000 classes"); // NOI18N
+            classFiles = null;
+        }
+        System.out.println("NameTable: " + nameTable.size() + // NOI18N
+                " class names, method names and descriptors"); // NOI18N
+    }
+
+    private static ClassFile parse(int kind, String name, byte[] content) throws IOException {
+        switch (kind) {
+            case BCEL:
+                return new BCELClassFile(new ByteArrayInputStream(content), name);
+            case CONSTANT_POOL:
+                return new ConstantPoolClassFile(content, content.length);
+            default:
+                return new CompactClassFile(new ConstantPoolClassFile(content, content.length), nameTable);
+        }
+    }
+
+    private static void read(File jar, List<String> names, List<byte[]> contents) throws IOException {
+        JarFile jarFile = new JarFile(jar);
+        try {
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements();) {
+                JarEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class")) { // NOI18N
+                    InputStream is = jarFile.getInputStream(entry);
+                    try {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        byte[] buffer = new byte[8192];
+                        int n;
+                        while ((n = is.read(buffer)) != -1) {
+                            out.write(buffer, 0, n);
+                        }
+                        names.add(entry.getName());
+                        contents.add(out.toByteArray());
+                    } finally {
+                        is.close();
+                    }
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean bean = ManagementFactory.getMemoryMXBean();
+        long used = bean.getHeapMemoryUsage().getUsed();
+        // collect until the heap stops shrinking
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = bean.getHeapMemoryUsage().getUsed();
+            if (now >= used && i > 1) {
+                return now;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.enterprise.tools.verifier.apiscan.classfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Compares the ClassFileLoader implementations on the same jars. For every
+ * class in the jars, it loads the class and gets its referenced class names
+ * and methods, which is what {@link ClosureCompilerImpl} and PackageAnalyser
+ * do. It reports time and allocated bytes per class for each loader, both
+ * when classes are read from the jars and when they are already in memory,
+ * which leaves only the cost of parsing. Classes read from the jars are
+ * measured with an empty {@link ClassFileCache} and again with every class
+ * already in it. It also checks that the constant pool loader finds every
+ * class name BCEL finds.
+ * It is part of the test sources, so it is not shipped. Usage, after
+ * mvn test-compile:
+ * <blockquote><pre>
+ * java -cp target/classes:target/test-classes:&lt;bcel jar&gt; \
+ *      com.sun.enterprise.tools.verifier.apiscan.classfile.ClassFileLoaderBenchmark \
+ *      [-warmup n] [-iterations n] a.jar b.jar ...
+ * </pre></blockquote>
+ */
+public class ClassFileLoaderBenchmark {
+
+    private static final String[] LOADERS = {
+            ClassFileLoaderFactory.BCEL_LOADER,
+            ClassFileLoaderFactory.CONSTANT_POOL_LOADER
+    };
+
+    private final List<File> jars = new ArrayList<File>();
+    // class names of every jar, in external form
+    private final Map<File, List<String>> classNames = new HashMap<File, List<String>>();
+    // content of every class file of every jar by resource path
+    private final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+
+    public static void main(String[] args) throws IOException {
+        int warmup = 3;
+        int iterations = 5;
+        ClassFileLoaderBenchmark benchmark = new ClassFileLoaderBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            if ("-warmup".equals(args[i])) { // NOI18N
+                warmup = Integer.parseInt(args[++i]);
+            } else if ("-iterations".equals(args[i])) { // NOI18N
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                benchmark.addJar(new File(args[i]));
+            }
+        }
+        if (benchmark.jars.isEmpty()) {
+            System.out.println("Usage : java " + ClassFileLoaderBenchmark.class.getName() + // NOI18N
+                    " [-warmup n] [-iterations n] <jar file(s)>"); // NOI18N
+            System.exit(1);
+        }
+        benchmark.compare();
+        for (String loader : LOADERS) {
+            benchmark.run(loader, false, false, warmup, iterations);
+        }
+        for (String loader : LOADERS) {
+            benchmark.run(loader, false, true, warmup, iterations);
+        }
+        for (String loader : LOADERS) {
+            benchmark.run(loader, true, false, warmup, iterations);
+        }
+        System.out.println(ClassFileCache.getInstance());
+    }
+
+    private void addJar(File jar) throws IOException {
+        List<String> names = new ArrayList<String>();
+        JarFile jarFile = new JarFile(jar);
+        try {
+            final String classExt = ".class"; // NOI18N
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements();) {
+                String name = entries.nextElement().getName();
+                // module-info and multi-release entries don't match their class names
+                if (name.endsWith(classExt) && !name.startsWith("META-INF/") && // NOI18N
+                        !name.endsWith("module-info.class")) { // NOI18N
+                    names.add(Util.convertToExternalClassName(name.substring(0, name.length() - classExt.length())));
+                    contents.put(name, read(jarFile.getInputStream(jarFile.getEntry(name))));
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+        jars.add(jar);
+        classNames.put(jar, names);
+    }
+
+    /**
+     * Checks that the constant pool loader reports at least the class names
+     * BCEL does. It may report more, as it also reads generic signatures.
+     */
+    private void compare() {
+        int classes = 0;
+        int missing = 0;
+        int extra = 0;
+        for (File jar : jars) {
+            ClassFileLoader bcel = ClassFileLoaderFactory.newInstance(
+                    ClassFileLoaderFactory.BCEL_LOADER, new Object[]{jar.getAbsolutePath()});
+            ClassFileLoader constantPool = ClassFileLoaderFactory.newInstance(
+                    ClassFileLoaderFactory.CONSTANT_POOL_LOADER, new Object[]{jar.getAbsolutePath()});
+            for (String className : classNames.get(jar)) {
+                Collection<String> expected;
+                Collection<String> actual;
+                try {
+                    expected = bcel.load(className).getAllReferencedClassNames();
+                } catch (Exception e) {
+                    continue; // not a class BCEL can read, nothing to compare with
+                }
+                try {
+                    actual = constantPool.load(className).getAllReferencedClassNames();
+                } catch (IOException e) {
+                    System.out.println("Failed to load " + className + ": " + e); // NOI18N
+                    missing++;
+                    continue;
+                }
+                classes++;
+                Set<String> notFound = new HashSet<String>(expected);
+                notFound.removeAll(actual);
+                if (!notFound.isEmpty()) {
+                    System.out.println(className + " misses " + notFound); // NOI18N
+                    missing++;
+                }
+                extra += actual.size() - (expected.size() - notFound.size());
+            }
+        }
+        System.out.println("Compared " + classes + " classes: " + missing + // NOI18N
+                " with missing class names, " + extra + // NOI18N
+                " class names only found in generic signatures"); // NOI18N
+    }
+
+    private void run(String loader, boolean inMemory, boolean cached, int warmup, int iterations) {
+        ClassFileCache.getInstance().clear();
+        for (int i = 0; i < warmup; i++) {
+            loadAll(loader, inMemory, cached);
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        int classes = 0;
+        for (int i = 0; i < iterations; i++) {
+            classes += loadAll(loader, inMemory, cached);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.println(loader.substring(loader.lastIndexOf('.') + 1) + // NOI18N
+                (inMemory ? " (in memory): " : cached ? " (cached): " : " (from jars): ") + // NOI18N
+                classes / iterations + " classes, " + // NOI18N
+                elapsed / 1000000 / iterations + " ms per iteration, " + // NOI18N
+                elapsed / Math.max(1, classes) + " ns per class" + // NOI18N
+                (allocatedBefore >= 0 ? ", " + allocated / Math.max(1, classes) + " bytes allocated per class" : "")); // NOI18N
+    }
+
+    // @return number of classes loaded
+    private int loadAll(String loader, boolean inMemory, boolean cached) {
+        if (!cached) {
+            ClassFileCache.getInstance().clear();
+        }
+        int classes = 0;
+        for (File jar : jars) {
+            Object arg = inMemory ? new InMemoryResourceFinder() : jar.getAbsolutePath();
+            ClassFileLoader cfl = ClassFileLoaderFactory.newInstance(loader, new Object[]{arg});
+            for (String className : classNames.get(jar)) {
+                try {
+                    ClassFile cf = cfl.load(className);
+                    cf.getAllReferencedClassNames();
+                    for (Method m : cf.getMethods()) {
+                        m.isNative();
+                    }
+                    classes++;
+                } catch (Exception e) {
+                    // counted as not loaded, compare() reports those
+                }
+            }
+        }
+        return classes;
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    // @return bytes allocated by the current thread so far, -1 if unknown
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private class InMemoryResourceFinder implements ResourceFinder {
+        public InputStream findResourceAsStream(String name) {
+            byte[] content = contents.get(name);
+            return content != null ? new ByteArrayInputStream(content) : null;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator.benchmarks;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Populates a {@link FakeFramework} with generated bundles.
+ * Every bundle has a number of service files. A few of them name one of {@link #SERVICES}, whose providers
+ * can actually be loaded and instantiated, while the rest name services nobody looks up, as is typical
+ * of a real installation. Every bundle also has a private resource, see {@link #resourcePath(int)}.
+ */
+public final class BundleGenerator {
+
+    /**
+     * Services which benchmarks look up.
+     */
+    public static final Class<?>[] SERVICES = {
+            Runnable.class, List.class, Map.class, Set.class, Collection.class,
+            Queue.class, CharSequence.class, Appendable.class, Deque.class, SortedMap.class
+    };
+
+    /**
+     * Provider classes of {@link #SERVICES}, having a public no-arg constructor.
+     */
+    private static final Class<?>[] PROVIDERS = {
+            Thread.class, ArrayList.class, HashMap.class, HashSet.class, ArrayList.class,
+            LinkedList.class, StringBuilder.class, StringBuilder.class, ArrayDeque.class, TreeMap.class
+    };
+
+    /**
+     * Number of distinct service names which are never looked up.
+     */
+    private static final int UNUSED_SERVICES = 50;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BundleGenerator() {
+    }
+
+    /**
+     * @param bundleCount number of bundles to install
+     * @param serviceFilesPerBundle number of META-INF/services files in every bundle
+     * @param providersPerService number of bundles providing each of {@link #SERVICES}
+     */
+    public static FakeFramework generate(int bundleCount, int serviceFilesPerBundle, int providersPerService) {
+        FakeFramework framework = new FakeFramework();
+        for (int i = 0; i < PROVIDERS.length; i++) {
+            // Provider class names are shared by all bundles, that's good enough for the locator.
+            framework.defineClass(providerName(i), PROVIDERS[i]);
+        }
+        int step = Math.max(1, bundleCount / (SERVICES.length * providersPerService));
+        for (int i = 0; i < bundleCount; i++) {
+            int service = -1;
+            if (i % step == 0 && i / step < SERVICES.length * providersPerService) {
+                service = (i / step) % SERVICES.length;
+            }
+            framework.install("bench:bundle-" + i, entries(i, serviceFilesPerBundle, service));
+        }
+        return framework;
+    }
+
+    /**
+     * @param service index in {@link #SERVICES} of the service provided by the bundle, -1 for none
+     * @return entries of the i-th generated bundle
+     */
+    public static Map<String, byte[]> entries(int i, int serviceFilesPerBundle, int service) {
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        entries.put("META-INF/MANIFEST.MF", bytes("Manifest-Version: 1.0\nBundle-SymbolicName: bundle-" + i + "\n"));
+        entries.put("bench/b" + i + "/Impl.class", new byte[512]);
+        entries.put(resourcePath(i), bytes("<config bundle='" + i + "'/>"));
+        for (int k = 0; k < serviceFilesPerBundle; k++) {
+            if (k == 0 && service >= 0) {
+                entries.put("META-INF/services/" + SERVICES[service].getName(),
+                        bytes("# generated\n" + providerName(service) + "\n"));
+            } else {
+                entries.put("META-INF/services/bench.unused.Service" + ((i + k) % UNUSED_SERVICES),
+                        bytes("bench.b" + i + ".Provider" + k + "\n"));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return path of a resource which exists only in the i-th generated bundle
+     */
+    public static String resourcePath(int i) {
+        return "bench/b" + i + "/config.xml";
+    }
+
+    static String providerName(int service) {
+        return "bench.provider." + SERVICES[service].getSimpleName() + "Provider";
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF8);
+    }
+}
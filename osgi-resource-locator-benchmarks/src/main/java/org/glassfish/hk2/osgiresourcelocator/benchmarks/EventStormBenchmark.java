@@ -0,0 +1,142 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator.benchmarks;
+
+import org.glassfish.hk2.osgiresourcelocator.Locators;
+import org.glassfish.hk2.osgiresourcelocator.ResourceFinder;
+import org.glassfish.hk2.osgiresourcelocator.ResourceFinderImpl;
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoader;
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoaderImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Look ups performed while another thread keeps updating bundles, as happens during a framework refresh
+ * or a bulk deployment. Events are delivered on the updating thread, like a framework's event dispatch
+ * thread would do.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventStormBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int bundles;
+
+    @Param({"5"})
+    public int serviceFilesPerBundle;
+
+    private FakeFramework framework;
+
+    private List<FakeBundle> installed;
+
+    @Setup
+    public void setUp() {
+        framework = BundleGenerator.generate(bundles, serviceFilesPerBundle, 2);
+        installed = framework.getInstalledBundles();
+        ServiceLoaderImpl serviceLoader = Locators.newServiceLoader(framework.getBundleContext());
+        serviceLoader.trackBundles();
+        ServiceLoader.initialize(serviceLoader);
+        ResourceFinderImpl resourceFinder = Locators.newResourceFinder(framework.getBundleContext());
+        resourceFinder.trackBundles();
+        ResourceFinder.initialize(resourceFinder);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ServiceLoader.reset();
+        ResourceFinder.reset();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next(int bound) {
+            next = (next + 1) % bound;
+            return next;
+        }
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(3)
+    public Iterable<Class> lookupProviderClasses(Cursor cursor) {
+        return ServiceLoader.lookupProviderClasses(BundleGenerator.SERVICES[cursor.next(BundleGenerator.SERVICES.length)]);
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(1)
+    public URL findEntry(Cursor cursor) {
+        return ResourceFinder.findEntry(BundleGenerator.resourcePath(cursor.next(bundles)));
+    }
+
+    /**
+     * Updates bundles one after another, without changing their content.
+     */
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(1)
+    public void updateBundle(Cursor cursor) {
+        FakeBundle bundle = installed.get(cursor.next(installed.size()));
+        framework.update(bundle, bundle.getEntries());
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator.benchmarks;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.regex.Pattern;
+
+/**
+ * A bundle of {@link FakeFramework}. Only the methods used by the locator are implemented,
+ * all others throw {@link UnsupportedOperationException}.
+ */
+public class FakeBundle implements Bundle {
+
+    private final FakeFramework framework;
+    private final long bundleId;
+    private final String location;
+    private final BundleContext bundleContext;
+    private volatile NavigableMap<String, byte[]> entries;
+    private volatile long lastModified;
+    private volatile int state = RESOLVED;
+
+    FakeBundle(FakeFramework framework, long bundleId, String location, Map<String, byte[]> entries) {
+        this.framework = framework;
+        this.bundleId = bundleId;
+        this.location = location;
+        this.bundleContext = new FakeBundleContext(framework, this);
+        setEntries(entries);
+    }
+
+    void setEntries(Map<String, byte[]> entries) {
+        this.entries = Collections.unmodifiableNavigableMap(new TreeMap<String, byte[]>(entries));
+        this.lastModified = System.nanoTime();
+    }
+
+    void setState(int state) {
+        this.state = state;
+    }
+
+    public Map<String, byte[]> getEntries() {
+        return entries;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public long getBundleId() {
+        return bundleId;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public String getSymbolicName() {
+        return location;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public BundleContext getBundleContext() {
+        return bundleContext;
+    }
+
+    public Class<?> loadClass(String name) throws ClassNotFoundException {
+        checkInstalled();
+        return framework.loadClass(name);
+    }
+
+    public URL getEntry(String path) {
+        checkInstalled();
+        path = normalize(path);
+        NavigableMap<String, byte[]> entries = this.entries;
+        byte[] content = entries.get(path);
+        if (content == null) {
+            if (path.isEmpty() || path.endsWith("/") || isDirectory(entries, path + "/")) {
+                content = new byte[0];
+            } else {
+                return null;
+            }
+        }
+        return toURL(path, content);
+    }
+
+    public Enumeration<String> getEntryPaths(String path) {
+        checkInstalled();
+        String dir = normalize(path);
+        if (!dir.isEmpty() && !dir.endsWith("/")) {
+            dir += "/";
+        }
+        Set<String> paths = new LinkedHashSet<String>();
+        for (String entry : entries.tailMap(dir, true).keySet()) {
+            if (!entry.startsWith(dir)) break;
+            int slash = entry.indexOf('/', dir.length());
+            paths.add(slash < 0 ? entry : entry.substring(0, slash + 1));
+        }
+        return paths.isEmpty() ? null : Collections.enumeration(paths);
+    }
+
+    public Enumeration<URL> findEntries(String path, String filePattern, boolean recurse) {
+        checkInstalled();
+        String dir = normalize(path);
+        if (!dir.isEmpty() && !dir.endsWith("/")) {
+            dir += "/";
+        }
+        Pattern pattern = Pattern.compile(filePattern == null ? ".*"
+                : ("\\Q" + filePattern + "\\E").replace("*", "\\E.*\\Q"));
+        NavigableMap<String, byte[]> entries = this.entries;
+        Vector<URL> urls = new Vector<URL>();
+        for (Map.Entry<String, byte[]> entry : entries.tailMap(dir, true).entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith(dir)) break;
+            String relative = name.substring(dir.length());
+            if (!recurse && relative.indexOf('/') >= 0) continue;
+            String fileName = relative.substring(relative.lastIndexOf('/') + 1);
+            if (pattern.matcher(fileName).matches()) {
+                urls.add(toURL(name, entry.getValue()));
+            }
+        }
+        return urls.isEmpty() ? null : urls.elements();
+    }
+
+    public Dictionary<String, String> getHeaders() {
+        return new Hashtable<String, String>();
+    }
+
+    public Dictionary<String, String> getHeaders(String locale) {
+        return getHeaders();
+    }
+
+    public Version getVersion() {
+        return Version.emptyVersion;
+    }
+
+    public <A> A adapt(Class<A> type) {
+        return null;
+    }
+
+    public File getDataFile(String filename) {
+        File dataArea = framework.getDataArea();
+        return dataArea != null ? new File(new File(dataArea, Long.toString(bundleId)), filename) : null;
+    }
+
+    public int compareTo(Bundle o) {
+        return bundleId < o.getBundleId() ? -1 : bundleId == o.getBundleId() ? 0 : 1;
+    }
+
+    @Override
+    public String toString() {
+        return location + " [" + bundleId + "]";
+    }
+
+    private void checkInstalled() {
+        if (state == UNINSTALLED) {
+            throw new IllegalStateException(this + " has been uninstalled");
+        }
+    }
+
+    private static boolean isDirectory(NavigableMap<String, byte[]> entries, String dir) {
+        String next = entries.ceilingKey(dir);
+        return next != null && next.startsWith(dir);
+    }
+
+    private static String normalize(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    private URL toURL(String path, final byte[] content) {
+        try {
+            return new URL("bundleentry", Long.toString(bundleId), -1, "/" + path, new URLStreamHandler() {
+                @Override
+                protected URLConnection openConnection(URL u) {
+                    return new URLConnection(u) {
+                        @Override
+                        public void connect() {
+                        }
+
+                        @Override
+                        public InputStream getInputStream() {
+                            return new ByteArrayInputStream(content);
+                        }
+                    };
+                }
+            });
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public void start(int options) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void start() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void stop(int options) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void stop() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void update(InputStream input) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void update() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void uninstall() {
+        throw new UnsupportedOperationException();
+    }
+
+    public ServiceReference<?>[] getRegisteredServices() {
+        throw new UnsupportedOperationException();
+    }
+
+    public ServiceReference<?>[] getServicesInUse() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean hasPermission(Object permission) {
+        return true;
+    }
+
+    public URL getResource(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Enumeration<URL> getResources(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Map<X509Certificate, List<X509Certificate>> getSignerCertificates(int signersType) {
+        return Collections.emptyMap();
+    }
+}
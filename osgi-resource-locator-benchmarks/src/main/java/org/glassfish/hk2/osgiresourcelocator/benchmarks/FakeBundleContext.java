@@ -0,0 +1,199 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator.benchmarks;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceObjects;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Dictionary;
+
+/**
+ * A bundle context of {@link FakeFramework}. Only the methods used by the locator and by service look ups
+ * are implemented, all others throw {@link UnsupportedOperationException}.
+ */
+class FakeBundleContext implements BundleContext {
+
+    private final FakeFramework framework;
+    private final FakeBundle bundle;
+
+    FakeBundleContext(FakeFramework framework, FakeBundle bundle) {
+        this.framework = framework;
+        this.bundle = bundle;
+    }
+
+    public String getProperty(String key) {
+        return framework.getProperty(key);
+    }
+
+    public Bundle getBundle() {
+        return bundle;
+    }
+
+    public Bundle getBundle(long id) {
+        return framework.getBundle(id);
+    }
+
+    public Bundle[] getBundles() {
+        return framework.getBundles();
+    }
+
+    public void addBundleListener(BundleListener listener) {
+        framework.addBundleListener(listener);
+    }
+
+    public void removeBundleListener(BundleListener listener) {
+        framework.removeBundleListener(listener);
+    }
+
+    public void addFrameworkListener(FrameworkListener listener) {
+        // The fake framework never fires framework events.
+    }
+
+    public void removeFrameworkListener(FrameworkListener listener) {
+    }
+
+    public File getDataFile(String filename) {
+        File file = bundle.getDataFile(filename);
+        if (file != null) {
+            file.getParentFile().mkdirs();
+        }
+        return file;
+    }
+
+    public Bundle installBundle(String location, InputStream input) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Bundle installBundle(String location) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void addServiceListener(ServiceListener listener, String filter) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void addServiceListener(ServiceListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void removeServiceListener(ServiceListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    public ServiceRegistration<?> registerService(String[] clazzes, Object service, Dictionary<String, ?> properties) {
+        return framework.getServiceRegistry().register(bundle, clazzes, service, properties);
+    }
+
+    public ServiceRegistration<?> registerService(String clazz, Object service, Dictionary<String, ?> properties) {
+        return registerService(new String[]{clazz}, service, properties);
+    }
+
+    public <S> ServiceRegistration<S> registerService(Class<S> clazz, S service, Dictionary<String, ?> properties) {
+        throw new UnsupportedOperationException();
+    }
+
+    public <S> ServiceRegistration<S> registerService(Class<S> clazz, ServiceFactory<S> factory,
+                                                      Dictionary<String, ?> properties) {
+        throw new UnsupportedOperationException();
+    }
+
+    public ServiceReference<?>[] getServiceReferences(String clazz, String filter) throws InvalidSyntaxException {
+        return framework.getServiceRegistry().getReferences(clazz, filter);
+    }
+
+    public ServiceReference<?>[] getAllServiceReferences(String clazz, String filter) throws InvalidSyntaxException {
+        return framework.getServiceRegistry().getReferences(clazz, filter);
+    }
+
+    public ServiceReference<?> getServiceReference(String clazz) {
+        try {
+            ServiceReference<?>[] references = getServiceReferences(clazz, null);
+            return references != null ? references[0] : null;
+        } catch (InvalidSyntaxException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public <S> ServiceReference<S> getServiceReference(Class<S> clazz) {
+        throw new UnsupportedOperationException();
+    }
+
+    public <S> Collection<ServiceReference<S>> getServiceReferences(Class<S> clazz, String filter) {
+        throw new UnsupportedOperationException();
+    }
+
+    @SuppressWarnings("unchecked")
+    public <S> S getService(ServiceReference<S> reference) {
+        return (S) framework.getServiceRegistry().getService(bundle, reference);
+    }
+
+    public boolean ungetService(ServiceReference<?> reference) {
+        return framework.getServiceRegistry().ungetService(bundle, reference);
+    }
+
+    public <S> ServiceObjects<S> getServiceObjects(ServiceReference<S> reference) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Filter createFilter(String filter) throws InvalidSyntaxException {
+        return FrameworkUtil.createFilter(filter);
+    }
+
+    public Bundle getBundle(String location) {
+        for (Bundle b : framework.getBundles()) {
+            if (b.getLocation().equals(location)) return b;
+        }
+        return null;
+    }
+}
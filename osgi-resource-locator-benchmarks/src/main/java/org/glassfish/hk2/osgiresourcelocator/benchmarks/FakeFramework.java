@@ -0,0 +1,198 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator.benchmarks;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory stand-in for an OSGi framework. Bundles are just maps of entry path to content, classes are
+ * looked up in a table shared by all bundles, and bundle events are delivered synchronously to listeners
+ * on the thread which installs, updates or uninstalls a bundle, as an asynchronous framework would do
+ * on its event dispatch thread. Services can be registered and looked up, but no service event is fired.
+ */
+public class FakeFramework {
+
+    private final ConcurrentSkipListMap<Long, FakeBundle> bundles = new ConcurrentSkipListMap<Long, FakeBundle>();
+    private final List<BundleListener> listeners = new CopyOnWriteArrayList<BundleListener>();
+    private final Map<String, String> properties = new ConcurrentHashMap<String, String>();
+    private final Map<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+    private final AtomicLong nextBundleId = new AtomicLong();
+    private final FakeServiceRegistry serviceRegistry = new FakeServiceRegistry();
+    private final FakeBundle locatorBundle;
+    private volatile File dataArea;
+
+    public FakeFramework() {
+        locatorBundle = install("osgi-resource-locator", new ConcurrentSkipListMap<String, byte[]>());
+    }
+
+    /**
+     * @return bundle context of the bundle playing the role of the locator bundle
+     */
+    public BundleContext getBundleContext() {
+        return locatorBundle.getBundleContext();
+    }
+
+    /**
+     * @param value new value, null to remove the property
+     */
+    public void setProperty(String key, String value) {
+        if (value == null) {
+            properties.remove(key);
+        } else {
+            properties.put(key, value);
+        }
+    }
+
+    String getProperty(String key) {
+        return properties.get(key);
+    }
+
+    /**
+     * Sets the directory used as the data area of every bundle. Bundles don't have any data area by default.
+     */
+    public void setDataArea(File dataArea) {
+        this.dataArea = dataArea;
+    }
+
+    File getDataArea() {
+        return dataArea;
+    }
+
+    /**
+     * Makes {@link Bundle#loadClass} of every bundle return the given class for the given name.
+     * java.* classes are always visible, like in a real framework.
+     */
+    public void defineClass(String name, Class<?> c) {
+        classes.put(name, c);
+    }
+
+    Class<?> loadClass(String name) throws ClassNotFoundException {
+        Class<?> c = classes.get(name);
+        if (c == null && name.startsWith("java.")) {
+            return Class.forName(name);
+        }
+        if (c == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return c;
+    }
+
+    /**
+     * Installs a bundle with the given entries and fires an INSTALLED event.
+     *
+     * @param entries map of entry path, without any leading '/', to its content
+     */
+    public FakeBundle install(String location, Map<String, byte[]> entries) {
+        FakeBundle bundle = new FakeBundle(this, nextBundleId.getAndIncrement(), location, entries);
+        bundles.put(bundle.getBundleId(), bundle);
+        fire(BundleEvent.INSTALLED, bundle);
+        return bundle;
+    }
+
+    /**
+     * Replaces the entries of the bundle and fires UNRESOLVED and UPDATED events.
+     */
+    public void update(FakeBundle bundle, Map<String, byte[]> entries) {
+        bundle.setEntries(entries);
+        fire(BundleEvent.UNRESOLVED, bundle);
+        fire(BundleEvent.UPDATED, bundle);
+    }
+
+    /**
+     * Removes the bundle and fires UNRESOLVED and UNINSTALLED events.
+     */
+    public void uninstall(FakeBundle bundle) {
+        bundles.remove(bundle.getBundleId());
+        fire(BundleEvent.UNRESOLVED, bundle);
+        bundle.setState(Bundle.UNINSTALLED);
+        fire(BundleEvent.UNINSTALLED, bundle);
+    }
+
+    public List<FakeBundle> getInstalledBundles() {
+        return new ArrayList<FakeBundle>(bundles.values());
+    }
+
+    FakeServiceRegistry getServiceRegistry() {
+        return serviceRegistry;
+    }
+
+    Bundle[] getBundles() {
+        return bundles.values().toArray(new Bundle[0]);
+    }
+
+    Bundle getBundle(long id) {
+        return bundles.get(id);
+    }
+
+    void addBundleListener(BundleListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeBundleListener(BundleListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Forgets all bundle listeners, e.g., those of a locator which is no longer used.
+     */
+    public void removeAllBundleListeners() {
+        listeners.clear();
+    }
+
+    private void fire(int type, Bundle bundle) {
+        BundleEvent event = new BundleEvent(type, bundle);
+        for (BundleListener listener : listeners) {
+            listener.bundleChanged(event);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator.benchmarks;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Service registry of {@link FakeFramework}. Services are indexed by object class and filtered with
+ * {@link FrameworkUtil#createFilter}. A {@link ServiceFactory} is called once per bundle getting the service,
+ * as in a real framework. No service events are fired and no class space consistency is checked.
+ */
+class FakeServiceRegistry {
+
+    private final ConcurrentMap<String, List<Registration>> registrationsByClass =
+            new ConcurrentHashMap<String, List<Registration>>();
+    private final AtomicLong nextServiceId = new AtomicLong(1);
+
+    ServiceRegistration<?> register(Bundle bundle, String[] classes, Object service,
+                                    Dictionary<String, ?> properties) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        if (properties != null) {
+            for (Enumeration<String> keys = properties.keys(); keys.hasMoreElements(); ) {
+                String key = keys.nextElement();
+                props.put(key, properties.get(key));
+            }
+        }
+        props.put(Constants.OBJECTCLASS, classes.clone());
+        props.put(Constants.SERVICE_ID, nextServiceId.getAndIncrement());
+        Registration registration = new Registration(bundle, classes, service, props);
+        for (String c : classes) {
+            List<Registration> registrations = registrationsByClass.get(c);
+            if (registrations == null) {
+                registrations = new CopyOnWriteArrayList<Registration>();
+                List<Registration> existing = registrationsByClass.putIfAbsent(c, registrations);
+                if (existing != null) {
+                    registrations = existing;
+                }
+            }
+            registrations.add(registration);
+        }
+        return registration;
+    }
+
+    /**
+     * @return references sorted by ranking and id, null if there is none, like {@link
+     * org.osgi.framework.BundleContext#getServiceReferences(String, String)}
+     */
+    ServiceReference<?>[] getReferences(String clazz, String filter) throws InvalidSyntaxException {
+        Filter f = filter != null ? FrameworkUtil.createFilter(filter) : null;
+        List<Registration> candidates;
+        if (clazz != null) {
+            candidates = registrationsByClass.get(clazz);
+            if (candidates == null) {
+                return null;
+            }
+        } else {
+            candidates = new ArrayList<Registration>();
+            for (List<Registration> registrations : registrationsByClass.values()) {
+                for (Registration registration : registrations) {
+                    if (!candidates.contains(registration)) {
+                        candidates.add(registration);
+                    }
+                }
+            }
+        }
+        List<ServiceReference<?>> result = new ArrayList<ServiceReference<?>>();
+        for (Registration registration : candidates) {
+            if (f == null || f.match(registration.reference)) {
+                result.add(registration.reference);
+            }
+        }
+        if (result.isEmpty()) {
+            return null;
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        return result.toArray(new ServiceReference<?>[result.size()]);
+    }
+
+    Object getService(Bundle consumer, ServiceReference<?> reference) {
+        return ((Reference) reference).registration.getService(consumer);
+    }
+
+    boolean ungetService(Bundle consumer, ServiceReference<?> reference) {
+        return ((Reference) reference).registration.ungetService(consumer);
+    }
+
+    private class Registration implements ServiceRegistration<Object> {
+        private final Bundle bundle;
+        private final String[] classes;
+        private final Object service;
+        private volatile Map<String, Object> properties;
+        private final Reference reference = new Reference(this);
+        private final ConcurrentMap<Long, Object> servicesByBundleId = new ConcurrentHashMap<Long, Object>();
+        private volatile boolean unregistered;
+
+        Registration(Bundle bundle, String[] classes, Object service, Map<String, Object> properties) {
+            this.bundle = bundle;
+            this.classes = classes;
+            this.service = service;
+            this.properties = properties;
+        }
+
+        public ServiceReference<Object> getReference() {
+            return reference;
+        }
+
+        public void setProperties(Dictionary<String, ?> properties) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void unregister() {
+            if (unregistered) {
+                throw new IllegalStateException("Already unregistered");
+            }
+            unregistered = true;
+            for (String c : classes) {
+                registrationsByClass.get(c).remove(this);
+            }
+            for (Long bundleId : servicesByBundleId.keySet()) {
+                ungetService(bundle.getBundleContext().getBundle(bundleId));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized Object getService(Bundle consumer) {
+            if (unregistered) {
+                return null;
+            }
+            if (!(service instanceof ServiceFactory)) {
+                return service;
+            }
+            Object s = servicesByBundleId.get(consumer.getBundleId());
+            if (s == null) {
+                s = ((ServiceFactory<Object>) service).getService(consumer, this);
+                if (s != null) {
+                    servicesByBundleId.put(consumer.getBundleId(), s);
+                }
+            }
+            return s;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized boolean ungetService(Bundle consumer) {
+            if (consumer == null) {
+                return false;
+            }
+            Object s = servicesByBundleId.remove(consumer.getBundleId());
+            if (s != null) {
+                ((ServiceFactory<Object>) service).ungetService(consumer, this, s);
+            }
+            return s != null;
+        }
+    }
+
+    private static class Reference implements ServiceReference<Object> {
+        private final Registration registration;
+
+        Reference(Registration registration) {
+            this.registration = registration;
+        }
+
+        public Object getProperty(String key) {
+            return registration.properties.get(key);
+        }
+
+        public String[] getPropertyKeys() {
+            return registration.properties.keySet().toArray(new String[0]);
+        }
+
+        public Bundle getBundle() {
+            return registration.unregistered ? null : registration.bundle;
+        }
+
+        public Bundle[] getUsingBundles() {
+            return null;
+        }
+
+        public boolean isAssignableTo(Bundle bundle, String className) {
+            return true;
+        }
+
+        public int compareTo(Object o) {
+            Reference other = (Reference) o;
+            int ranking = Integer.compare(ranking(this), ranking(other));
+            if (ranking != 0) {
+                return ranking;
+            }
+            // A lower id ranks higher.
+            return Long.compare((Long) other.getProperty(Constants.SERVICE_ID), (Long) getProperty(Constants.SERVICE_ID));
+        }
+
+        private static int ranking(Reference reference) {
+            Object ranking = reference.getProperty(Constants.SERVICE_RANKING);
+            return ranking instanceof Integer ? (Integer) ranking : 0;
+        }
+    }
+}
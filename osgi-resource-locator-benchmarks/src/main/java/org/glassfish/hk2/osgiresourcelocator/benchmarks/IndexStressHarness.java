@@ -0,0 +1,532 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator.benchmarks;
+
+import org.glassfish.hk2.osgiresourcelocator.Locators;
+import org.glassfish.hk2.osgiresourcelocator.ProviderDescriptor;
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoader;
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoaderImpl;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Drives concurrent look ups against random bundle churn and checks every result against a model of the
+ * framework. It is a plain main class, so it runs on any JVM:
+ * <pre>
+ * java -cp target/benchmarks.jar org.glassfish.hk2.osgiresourcelocator.benchmarks.IndexStressHarness \
+ *      threads=8 seconds=30 bundles=1000 eventMode=sync
+ * </pre>
+ * A single churn thread installs, updates and uninstalls bundles providing random subsets of
+ * {@link BundleGenerator#SERVICES}. Every change gets a version number, and the model keeps the bundles
+ * providing each service at every version. Look up threads call
+ * {@link ServiceLoader#lookupProviderDescriptors(Class)} and {@link ServiceLoader#lookupProviderClasses(Class)}
+ * and check that
+ * <ul>
+ * <li>providers are in strictly ascending order of bundle id,</li>
+ * <li>in sync event mode, the providers are exactly those of one version which was current at some point
+ * during the look up, i.e., the look up is linearizable, except that bundles uninstalled while the look up ran
+ * may be missing, as the locator skips bundles it can no longer get from the framework,</li>
+ * <li>in async event mode, every provider belongs to a bundle which provided the service at some version
+ * before the look up ended, and the index converges to the final version once the churn stops.</li>
+ * </ul>
+ * Throughput and latency percentiles of look ups are reported at the end. The exit status is 1 if any
+ * check failed.
+ */
+public class IndexStressHarness {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Number of versions kept by the model. Look ups spanning more versions than that are not checked.
+     */
+    private static final int HISTORY = 1 << 16;
+
+    /**
+     * Maximum number of latencies kept per look up thread.
+     */
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private final int threads;
+    private final long durationNanos;
+    private final int maxChurnBundles;
+    private final boolean sync;
+    private final FakeFramework framework;
+
+    /**
+     * Bundle ids providing each service, sorted, by version modulo {@link #HISTORY}.
+     */
+    private final AtomicReferenceArray<Map<String, long[]>> history =
+            new AtomicReferenceArray<Map<String, long[]>>(HISTORY);
+
+    /**
+     * Id of the bundle uninstalled by each version, -1 if none, by version modulo {@link #HISTORY}.
+     */
+    private final AtomicLongArray uninstalled = new AtomicLongArray(HISTORY);
+
+    /**
+     * Version of the last change which has started and of the last one which has completed.
+     */
+    private volatile long started;
+    private volatile long completed;
+
+    /**
+     * Bundle ids which provided each service at some version, checked against in async event mode.
+     */
+    private final Map<String, Set<Long>> everProvided = new HashMap<String, Set<Long>>();
+
+    private volatile boolean stop;
+
+    private final AtomicLong unchecked = new AtomicLong();
+    private final AtomicLong violations = new AtomicLong();
+    private final AtomicLong churnOps = new AtomicLong();
+
+    public IndexStressHarness(int threads, int seconds, int bundles, int maxChurnBundles, boolean sync) {
+        this.threads = threads;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+        this.maxChurnBundles = maxChurnBundles;
+        this.sync = sync;
+        framework = BundleGenerator.generate(bundles, 5, 2);
+        framework.setProperty(ServiceLoaderImpl.EVENT_MODE_PROP,
+                sync ? ServiceLoaderImpl.EVENT_MODE_SYNC : ServiceLoaderImpl.EVENT_MODE_ASYNC);
+        framework.setProperty(ServiceLoaderImpl.PERSISTENT_INDEX_PROP, "false");
+        for (Class<?> service : BundleGenerator.SERVICES) {
+            everProvided.put(service.getName(), Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>()));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int idx = arg.indexOf('=');
+            if (idx < 0) {
+                System.err.println("Usage: IndexStressHarness [threads=n] [seconds=n] [bundles=n] "
+                        + "[churnBundles=n] [eventMode=sync|async]");
+                System.exit(2);
+            }
+            options.put(arg.substring(0, idx), arg.substring(idx + 1));
+        }
+        IndexStressHarness harness = new IndexStressHarness(
+                intOption(options, "threads", Runtime.getRuntime().availableProcessors()),
+                intOption(options, "seconds", 10),
+                intOption(options, "bundles", 1000),
+                intOption(options, "churnBundles", 200),
+                !"async".equals(options.get("eventMode")));
+        System.exit(harness.run() ? 0 : 1);
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * @return true if no check failed
+     */
+    public boolean run() throws Exception {
+        ServiceLoaderImpl serviceLoader = Locators.newServiceLoader(framework.getBundleContext());
+        serviceLoader.trackBundles();
+        ServiceLoader.initialize(serviceLoader);
+        try {
+            final CountDownLatch startSignal = new CountDownLatch(1);
+            Churner churner = new Churner(startSignal);
+            addVersion(0, model(churner.entries), -1);
+            List<Looker> lookers = new ArrayList<Looker>();
+            for (int i = 0; i < threads; i++) {
+                Looker looker = new Looker(i, startSignal);
+                lookers.add(looker);
+                looker.start();
+            }
+            churner.start();
+            long startTime = System.nanoTime();
+            startSignal.countDown();
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+            stop = true;
+            churner.join();
+            for (Looker looker : lookers) {
+                looker.join();
+            }
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            if (churner.failure != null) {
+                throw churner.failure;
+            }
+            if (!sync) {
+                checkConvergence();
+            }
+            report(lookers, seconds);
+            return violations.get() == 0;
+        } finally {
+            ServiceLoader.reset();
+            framework.removeAllBundleListeners();
+        }
+    }
+
+    private void checkConvergence() throws InterruptedException {
+        if (!ServiceLoader.awaitConsistency(30, TimeUnit.SECONDS)) {
+            violation("index did not become consistent within 30s");
+            return;
+        }
+        Map<String, long[]> last = history.get((int) (completed % HISTORY));
+        for (Class<?> service : BundleGenerator.SERVICES) {
+            long[] ids = bundleIds(ServiceLoader.lookupProviderDescriptors(service));
+            if (!Arrays.equals(ids, last.get(service.getName()))) {
+                violation("after churn, " + service.getName() + " has providers " + Arrays.toString(ids)
+                        + ", expected " + Arrays.toString(last.get(service.getName())));
+            }
+        }
+    }
+
+    private void report(List<Looker> lookers, double seconds) {
+        int total = 0;
+        long lookups = 0;
+        for (Looker looker : lookers) {
+            total += looker.sampleCount;
+            lookups += looker.lookups;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (Looker looker : lookers) {
+            System.arraycopy(looker.samples, 0, all, offset, looker.sampleCount);
+            offset += looker.sampleCount;
+        }
+        Arrays.sort(all);
+        System.out.printf("event mode          %s%n", sync ? "sync" : "async");
+        System.out.printf("look up threads     %d%n", threads);
+        System.out.printf("look ups            %d (%.0f/s)%n", lookups, lookups / seconds);
+        System.out.printf("bundle changes      %d (%.0f/s)%n", churnOps.get(), churnOps.get() / seconds);
+        System.out.printf("latency p50         %d ns%n", percentile(all, 0.50));
+        System.out.printf("latency p99         %d ns%n", percentile(all, 0.99));
+        System.out.printf("latency p99.9       %d ns%n", percentile(all, 0.999));
+        System.out.printf("latency max         %d ns%n", all.length > 0 ? all[all.length - 1] : 0);
+        System.out.printf("unchecked look ups  %d%n", unchecked.get());
+        System.out.printf("violations          %d%n", violations.get());
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length > 0 ? sorted[(int) Math.min(sorted.length - 1, (long) (p * sorted.length))] : 0;
+    }
+
+    private void violation(String message) {
+        // Only the first few are printed, the count tells the rest.
+        if (violations.incrementAndGet() <= 10) {
+            System.err.println("VIOLATION: " + message);
+        }
+    }
+
+    /**
+     * @param entries entries of every installed bundle, by bundle id
+     * @return bundle ids providing each of {@link BundleGenerator#SERVICES}, sorted
+     */
+    private static Map<String, long[]> model(Map<Long, Map<String, byte[]>> entries) {
+        Map<String, long[]> model = new HashMap<String, long[]>();
+        for (Class<?> service : BundleGenerator.SERVICES) {
+            List<Long> ids = new ArrayList<Long>();
+            for (Map.Entry<Long, Map<String, byte[]>> e : entries.entrySet()) {
+                if (e.getValue().containsKey("META-INF/services/" + service.getName())) {
+                    ids.add(e.getKey());
+                }
+            }
+            long[] sorted = new long[ids.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = ids.get(i);
+            }
+            Arrays.sort(sorted);
+            model.put(service.getName(), sorted);
+        }
+        return model;
+    }
+
+    private void addVersion(long version, Map<String, long[]> model, long uninstalledBundleId) {
+        for (Map.Entry<String, long[]> e : model.entrySet()) {
+            for (long id : e.getValue()) {
+                everProvided.get(e.getKey()).add(id);
+            }
+        }
+        uninstalled.set((int) (version % HISTORY), uninstalledBundleId);
+        history.set((int) (version % HISTORY), model);
+    }
+
+    private static long[] bundleIds(List<ProviderDescriptor> descriptors) {
+        long[] ids = new long[descriptors.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = descriptors.get(i).getBundleId();
+        }
+        return ids;
+    }
+
+    /**
+     * Applies random changes one at a time. The model of a version is published before the change starts,
+     * so that look ups overlapping the change can find it.
+     */
+    private class Churner extends Thread {
+        private final CountDownLatch startSignal;
+        private final Random random = new Random(42);
+        private final List<FakeBundle> churned = new ArrayList<FakeBundle>();
+
+        /**
+         * Entries of every installed bundle, as of the last version.
+         */
+        private final Map<Long, Map<String, byte[]>> entries = new HashMap<Long, Map<String, byte[]>>();
+
+        /**
+         * Id the next installed bundle gets. Bundle ids are handed out in sequence and nobody else installs
+         * bundles while the harness runs.
+         */
+        private long nextBundleId;
+        private int installed;
+        volatile Exception failure;
+
+        Churner(CountDownLatch startSignal) {
+            super("churner");
+            this.startSignal = startSignal;
+            for (FakeBundle bundle : framework.getInstalledBundles()) {
+                entries.put(bundle.getBundleId(), bundle.getEntries());
+                nextBundleId = Math.max(nextBundleId, bundle.getBundleId() + 1);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                startSignal.await();
+                while (!stop) {
+                    churn();
+                    churnOps.incrementAndGet();
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private void churn() {
+            int op = random.nextInt(3);
+            if (churned.isEmpty() || (op == 0 && churned.size() < maxChurnBundles)) {
+                Map<String, byte[]> newEntries = randomEntries();
+                long id = nextBundleId++;
+                entries.put(id, newEntries);
+                publish(-1);
+                FakeBundle bundle = framework.install("stress:bundle-" + installed++, newEntries);
+                if (bundle.getBundleId() != id) {
+                    throw new IllegalStateException("Expected bundle id " + id + ", got " + bundle.getBundleId());
+                }
+                churned.add(bundle);
+            } else if (op == 1) {
+                FakeBundle bundle = churned.get(random.nextInt(churned.size()));
+                Map<String, byte[]> newEntries = randomEntries();
+                entries.put(bundle.getBundleId(), newEntries);
+                publish(-1);
+                framework.update(bundle, newEntries);
+            } else {
+                FakeBundle bundle = churned.remove(random.nextInt(churned.size()));
+                entries.remove(bundle.getBundleId());
+                publish(bundle.getBundleId());
+                framework.uninstall(bundle);
+            }
+            completed = started;
+        }
+
+        /**
+         * Makes the current {@link #entries} the next version and marks its change as started.
+         */
+        private void publish(long uninstalledBundleId) {
+            long version = started + 1;
+            addVersion(version, model(entries), uninstalledBundleId);
+            started = version;
+        }
+
+        private Map<String, byte[]> randomEntries() {
+            Map<String, byte[]> entries = new HashMap<String, byte[]>();
+            entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes(UTF8));
+            for (int i = 0; i < BundleGenerator.SERVICES.length; i++) {
+                if (random.nextInt(4) == 0) {
+                    entries.put("META-INF/services/" + BundleGenerator.SERVICES[i].getName(),
+                            (BundleGenerator.providerName(i) + "\n").getBytes(UTF8));
+                }
+            }
+            return entries;
+        }
+    }
+
+    private class Looker extends Thread {
+        private final CountDownLatch startSignal;
+        private final Random random;
+        final long[] samples = new long[MAX_SAMPLES];
+        int sampleCount;
+        long lookups;
+
+        Looker(int i, CountDownLatch startSignal) {
+            super("looker-" + i);
+            this.startSignal = startSignal;
+            this.random = new Random(i);
+        }
+
+        @Override
+        public void run() {
+            try {
+                startSignal.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            while (!stop) {
+                Class<?> service = BundleGenerator.SERVICES[random.nextInt(BundleGenerator.SERVICES.length)];
+                boolean descriptors = random.nextInt(4) != 0;
+                long lo = completed;
+                long startTime = System.nanoTime();
+                long[] ids = null;
+                int classCount = -1;
+                try {
+                    if (descriptors) {
+                        ids = bundleIds(ServiceLoader.lookupProviderDescriptors(service));
+                    } else {
+                        classCount = 0;
+                        Iterator<Class> classes = ServiceLoader.lookupProviderClasses(service).iterator();
+                        while (classes.hasNext()) {
+                            classes.next();
+                            classCount++;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    StringWriter stackTrace = new StringWriter();
+                    e.printStackTrace(new PrintWriter(stackTrace));
+                    violation("looking up " + service.getName() + " failed: " + stackTrace);
+                    continue;
+                }
+                long latency = System.nanoTime() - startTime;
+                long hi = started;
+                if (sampleCount < samples.length) {
+                    samples[sampleCount++] = latency;
+                }
+                lookups++;
+                check(service.getName(), ids, classCount, lo, hi);
+            }
+        }
+
+        private void check(String service, long[] ids, int classCount, long lo, long hi) {
+            if (ids != null) {
+                for (int i = 1; i < ids.length; i++) {
+                    if (ids[i - 1] >= ids[i]) {
+                        violation(service + " providers not in ascending bundle id order: " + Arrays.toString(ids));
+                        return;
+                    }
+                }
+            }
+            if (!sync) {
+                // The index lags behind, so only check that every provider is genuine.
+                if (ids != null) {
+                    Set<Long> provided = everProvided.get(service);
+                    for (long id : ids) {
+                        if (!provided.contains(id)) {
+                            violation(service + " returned bundle " + id + " which never provided it");
+                        }
+                    }
+                }
+                return;
+            }
+            if (hi - lo >= HISTORY) {
+                unchecked.incrementAndGet();
+                return;
+            }
+            StringBuilder candidates = new StringBuilder();
+            for (long v = lo; v <= hi; v++) {
+                long[] expected = history.get((int) (v % HISTORY)).get(service);
+                if (ids != null ? matches(ids, expected, v, hi) : matches(classCount, expected, v, hi)) {
+                    return;
+                }
+                candidates.append(' ').append(Arrays.toString(expected));
+            }
+            violation(service + " returned " + (ids != null ? Arrays.toString(ids) : classCount + " classes")
+                    + " between versions " + lo + " and " + hi + ", expected one of" + candidates);
+        }
+
+        /**
+         * Look ups skip providers of bundles which are no longer installed, so a result taken from the index
+         * at the given version may miss bundles uninstalled since then.
+         *
+         * @return true if ids are those of the given version, minus bundles uninstalled by versions up to hi
+         */
+        private boolean matches(long[] ids, long[] expected, long version, long hi) {
+            int i = 0;
+            for (long id : expected) {
+                if (i < ids.length && ids[i] == id) {
+                    i++;
+                } else if (!uninstalledAfter(id, version, hi)) {
+                    return false;
+                }
+            }
+            return i == ids.length;
+        }
+
+        private boolean matches(int classCount, long[] expected, long version, long hi) {
+            int missing = 0;
+            for (long id : expected) {
+                if (uninstalledAfter(id, version, hi)) {
+                    missing++;
+                }
+            }
+            return classCount <= expected.length && classCount >= expected.length - missing;
+        }
+
+        private boolean uninstalledAfter(long bundleId, long version, long hi) {
+            for (long v = version + 1; v <= hi; v++) {
+                if (uninstalled.get((int) (v % HISTORY)) == bundleId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
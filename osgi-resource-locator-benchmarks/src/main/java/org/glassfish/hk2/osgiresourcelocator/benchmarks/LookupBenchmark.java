@@ -0,0 +1,227 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator.benchmarks;
+
+import org.glassfish.hk2.osgiresourcelocator.Locators;
+import org.glassfish.hk2.osgiresourcelocator.ResourceFinder;
+import org.glassfish.hk2.osgiresourcelocator.ResourceFinderImpl;
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoader;
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoaderImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of look ups through the public {@link ServiceLoader} and {@link ResourceFinder} API,
+ * with a single reader and with concurrent readers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Param({"10", "100", "1000", "5000"})
+    public int bundles;
+
+    @Param({"5"})
+    public int serviceFilesPerBundle;
+
+    @Param({"2"})
+    public int providersPerService;
+
+    private static final List<Class<?>> SERVICE_LIST = Arrays.<Class<?>>asList(BundleGenerator.SERVICES);
+
+    private FakeFramework framework;
+
+    /**
+     * Context of a generated bundle, used to get the providers published in the service registry.
+     */
+    private BundleContext consumerContext;
+
+    @Setup
+    public void setUp() {
+        framework = BundleGenerator.generate(bundles, serviceFilesPerBundle, providersPerService);
+        framework.setProperty(ServiceLoaderImpl.PUBLISH_SERVICES_PROP, "true");
+        consumerContext = framework.getInstalledBundles().get(1).getBundleContext();
+        ServiceLoaderImpl serviceLoader = Locators.newServiceLoader(framework.getBundleContext());
+        serviceLoader.trackBundles();
+        ServiceLoader.initialize(serviceLoader);
+        ResourceFinderImpl resourceFinder = Locators.newResourceFinder(framework.getBundleContext());
+        resourceFinder.trackBundles();
+        ResourceFinder.initialize(resourceFinder);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ServiceLoader.reset();
+        ResourceFinder.reset();
+    }
+
+    /**
+     * Per thread position in the sequence of looked up services and resources.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next(int bound) {
+            next = (next + 1) % bound;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public Iterable<Class> lookupProviderClasses(Cursor cursor) {
+        return ServiceLoader.lookupProviderClasses(BundleGenerator.SERVICES[cursor.next(BundleGenerator.SERVICES.length)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Iterable<Class> lookupProviderClassesConcurrently(Cursor cursor) {
+        return lookupProviderClasses(cursor);
+    }
+
+    /**
+     * Looks up all of {@link BundleGenerator#SERVICES} in one call, to be compared with as many calls of
+     * {@link #lookupProviderClasses}.
+     */
+    @Benchmark
+    public Map<Class<?>, Iterable<Class>> lookupProviderClassesBatch() {
+        return ServiceLoader.lookupProviderClasses(SERVICE_LIST);
+    }
+
+    @Benchmark
+    public Object lookupFirstProviderInstance(Cursor cursor) {
+        return ServiceLoader.lookupFirstProviderInstance(BundleGenerator.SERVICES[cursor.next(BundleGenerator.SERVICES.length)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object lookupFirstProviderInstanceConcurrently(Cursor cursor) {
+        return lookupFirstProviderInstance(cursor);
+    }
+
+    @Benchmark
+    public Object lookupFirstProviderInstanceSingleton(Cursor cursor) {
+        return ServiceLoader.lookupFirstProviderInstance(BundleGenerator.SERVICES[cursor.next(BundleGenerator.SERVICES.length)],
+                null, ServiceLoader.InstanceScope.SINGLETON);
+    }
+
+    /**
+     * Same as {@link #lookupFirstProviderInstanceSingleton} through the service registry, where providers
+     * have been published by {@link ServiceLoaderImpl#PUBLISH_SERVICES_PROP}.
+     */
+    @Benchmark
+    public Object getServiceFromRegistry(Cursor cursor) throws InvalidSyntaxException {
+        ServiceReference<?>[] references = consumerContext.getServiceReferences(
+                BundleGenerator.SERVICES[cursor.next(BundleGenerator.SERVICES.length)].getName(), null);
+        return references != null ? consumerContext.getService(references[0]) : null;
+    }
+
+    /**
+     * Alternates between a path present in one bundle and a path present in none.
+     */
+    @Benchmark
+    public URL findEntry(Cursor cursor) {
+        int i = cursor.next(2 * bundles);
+        return ResourceFinder.findEntry(i % 2 == 0 ? BundleGenerator.resourcePath(i / 2) : "bench/missing" + i);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public URL findEntryConcurrently(Cursor cursor) {
+        return findEntry(cursor);
+    }
+
+    /**
+     * Reads one of a few resources through {@link ResourceFinder#readEntry}, to be compared with
+     * {@link #findEntryAndOpenStream}. The fake bundles keep entries in memory, so unlike a real
+     * framework there is no zip entry to inflate.
+     */
+    @Benchmark
+    public ByteBuffer readEntry(Cursor cursor) throws IOException {
+        return ResourceFinder.readEntry(BundleGenerator.resourcePath(cursor.next(Math.min(bundles, 10))));
+    }
+
+    @Benchmark
+    public int findEntryAndOpenStream(Cursor cursor, Blackhole blackhole) throws IOException {
+        URL url = ResourceFinder.findEntry(BundleGenerator.resourcePath(cursor.next(Math.min(bundles, 10))));
+        InputStream is = url.openStream();
+        try {
+            byte[] buffer = new byte[256];
+            int total = 0;
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                blackhole.consume(buffer);
+                total += n;
+            }
+            return total;
+        } finally {
+            is.close();
+        }
+    }
+}
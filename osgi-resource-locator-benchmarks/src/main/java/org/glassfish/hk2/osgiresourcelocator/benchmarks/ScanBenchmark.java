@@ -0,0 +1,137 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator.benchmarks;
+
+import org.glassfish.hk2.osgiresourcelocator.Locators;
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoaderImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by {@link ServiceLoaderImpl#trackBundles()} to index all installed bundles, as done when
+ * the locator bundle starts. With a persistent index, the index saved by a previous run is reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({"10", "100", "1000", "5000"})
+    public int bundles;
+
+    @Param({"5"})
+    public int serviceFilesPerBundle;
+
+    @Param({ServiceLoaderImpl.SCAN_MODE_SERIAL, ServiceLoaderImpl.SCAN_MODE_PARALLEL})
+    public String scanMode;
+
+    @Param({"false", "true"})
+    public boolean persistentIndex;
+
+    @Param({ServiceLoaderImpl.PARSE_MODE_EAGER, ServiceLoaderImpl.PARSE_MODE_LAZY})
+    public String parseMode;
+
+    private FakeFramework framework;
+
+    private File dataArea;
+
+    @Setup
+    public void setUp() throws IOException {
+        framework = BundleGenerator.generate(bundles, serviceFilesPerBundle, 2);
+        framework.setProperty(ServiceLoaderImpl.SCAN_MODE_PROP, scanMode);
+        framework.setProperty(ServiceLoaderImpl.PERSISTENT_INDEX_PROP, Boolean.toString(persistentIndex));
+        framework.setProperty(ServiceLoaderImpl.PARSE_MODE_PROP, parseMode);
+        if (persistentIndex) {
+            dataArea = File.createTempFile("osgiresourcelocator", "");
+            dataArea.delete();
+            framework.setDataArea(dataArea);
+            // Save an index, so that every measured scan is a warm restart.
+            scan();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeListeners() {
+        framework.removeAllBundleListeners();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (dataArea != null) {
+            delete(dataArea);
+        }
+    }
+
+    @Benchmark
+    public ServiceLoaderImpl scan() {
+        ServiceLoaderImpl serviceLoader = Locators.newServiceLoader(framework.getBundleContext());
+        serviceLoader.trackBundles();
+        return serviceLoader;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
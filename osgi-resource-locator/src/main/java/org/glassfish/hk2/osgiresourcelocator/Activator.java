@@ -44,6 +44,11 @@ package org.glassfish.hk2.osgiresourcelocator;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
 /**
  * This activator initializes {@link ServiceLoader} with an appropriate instance.
  *
@@ -51,16 +56,55 @@ import org.osgi.framework.BundleContext;
  */
 public class Activator implements BundleActivator {
 
+    private ServiceLoaderImpl serviceLoader;
+
+    private ObjectName statisticsName;
+
     public void start(BundleContext context) throws Exception {
-        ServiceLoaderImpl serviceLoader = new ServiceLoaderImpl();
+        LocatorEvents.start();
+        LocatorStatistics statistics = new LocatorStatistics();
+        serviceLoader = new ServiceLoaderImpl(statistics);
         serviceLoader.trackBundles();
         ServiceLoader.initialize(serviceLoader);
-        ResourceFinderImpl resourceFinder = new ResourceFinderImpl();
+        serviceLoader.prewarm();
+        ResourceFinderImpl resourceFinder = new ResourceFinderImpl(statistics);
+        resourceFinder.trackBundles();
         ResourceFinder.initialize(resourceFinder);
+        registerStatistics(statistics);
     }
 
     public void stop(BundleContext context) throws Exception {
+        unregisterStatistics();
+        serviceLoader.stopTracking();
+        serviceLoader.saveIndex();
+        serviceLoader.saveLearnedServices();
         ServiceLoader.reset();
+        LocatorEvents.stop();
+    }
+
+    private void registerStatistics(LocatorStatistics statistics) {
+        try {
+            ObjectName name = new ObjectName(LocatorStatisticsMXBean.OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, name);
+            statisticsName = name;
+        } catch (JMException e) {
+            // Statistics are not essential, so don't fail to start because of them.
+            e.printStackTrace();
+        }
+    }
+
+    private void unregisterStatistics() {
+        if (statisticsName == null) return;
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            if (mbs.isRegistered(statisticsName)) {
+                mbs.unregisterMBean(statisticsName);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        } finally {
+            statisticsName = null;
+        }
     }
 
 }
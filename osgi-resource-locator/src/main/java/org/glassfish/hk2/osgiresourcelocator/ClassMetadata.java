@@ -0,0 +1,336 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Information about a class which is read from its class file, without defining the class.
+ * Only what is needed to describe a provider is kept: access flags, whether there is a public no-arg constructor
+ * and the runtime visible annotations of the class.
+ *
+ * Annotation element values are represented as follows: primitives by their wrapper, strings as strings,
+ * enum constants by their name, classes by their name, nested annotations by the map of their elements
+ * and arrays by unmodifiable lists. Elements which are not present in the class file, i.e., those having
+ * their default value, are not included.
+ */
+final class ClassMetadata {
+    /**
+     * Used when the class file can't be found or read.
+     */
+    static final ClassMetadata UNAVAILABLE = new ClassMetadata(0, false,
+            Collections.<String, Map<String, Object>>emptyMap());
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+
+    private final int accessFlags;
+    private final boolean publicNoArgConstructor;
+    private final Map<String, Map<String, Object>> annotations;
+
+    private ClassMetadata(int accessFlags, boolean publicNoArgConstructor,
+                          Map<String, Map<String, Object>> annotations) {
+        this.accessFlags = accessFlags;
+        this.publicNoArgConstructor = publicNoArgConstructor;
+        this.annotations = annotations;
+    }
+
+    boolean isAvailable() {
+        return this != UNAVAILABLE;
+    }
+
+    boolean isPublic() {
+        return (accessFlags & ACC_PUBLIC) != 0;
+    }
+
+    boolean isConcrete() {
+        return isAvailable() && (accessFlags & (ACC_INTERFACE | ACC_ABSTRACT)) == 0;
+    }
+
+    boolean hasPublicNoArgConstructor() {
+        return publicNoArgConstructor;
+    }
+
+    /**
+     * @return element values by element name, by annotation class name
+     */
+    Map<String, Map<String, Object>> getAnnotations() {
+        return annotations;
+    }
+
+    /**
+     * Reads a class file. The stream is closed by this method.
+     *
+     * @throws IOException if the stream can't be read or does not contain a class file
+     */
+    static ClassMetadata read(InputStream is) throws IOException {
+        try {
+            return new Reader(new DataInputStream(is)).read();
+        } catch (RuntimeException e) {
+            // Bad constant pool indexes and the like
+            throw new IOException("Malformed class file: " + e);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Reads a class file as specified in chapter 4 of the Java Virtual Machine Specification,
+     * skipping everything not needed.
+     */
+    private static class Reader {
+        private final DataInputStream in;
+
+        // Constant pool: UTF8 entries as strings, numeric entries as wrappers, class entries as the index of their name
+        private Object[] constants;
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        ClassMetadata read() throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a class file");
+            }
+            in.readUnsignedShort(); // minor version
+            in.readUnsignedShort(); // major version
+            readConstantPool();
+            int accessFlags = in.readUnsignedShort();
+            String thisClass = className(in.readUnsignedShort());
+            in.readUnsignedShort(); // super class
+            skip(2 * in.readUnsignedShort()); // interfaces
+            int fieldCount = in.readUnsignedShort();
+            for (int i = 0; i < fieldCount; i++) {
+                skip(6);
+                skipAttributes();
+            }
+            boolean publicNoArgConstructor = false;
+            int methodCount = in.readUnsignedShort();
+            for (int i = 0; i < methodCount; i++) {
+                int methodFlags = in.readUnsignedShort();
+                String name = utf8(in.readUnsignedShort());
+                String descriptor = utf8(in.readUnsignedShort());
+                if ((methodFlags & ACC_PUBLIC) != 0 && "<init>".equals(name) && "()V".equals(descriptor)) {
+                    publicNoArgConstructor = true;
+                }
+                skipAttributes();
+            }
+            Map<String, Map<String, Object>> annotations = Collections.emptyMap();
+            int attributeCount = in.readUnsignedShort();
+            for (int i = 0; i < attributeCount; i++) {
+                String name = utf8(in.readUnsignedShort());
+                int length = in.readInt();
+                if ("RuntimeVisibleAnnotations".equals(name)) {
+                    annotations = readAnnotations();
+                } else if ("InnerClasses".equals(name)) {
+                    // Access flags of a nested class, like private or static, are only recorded here.
+                    int classCount = in.readUnsignedShort();
+                    for (int j = 0; j < classCount; j++) {
+                        String innerClass = className(in.readUnsignedShort());
+                        skip(4); // outer class, inner name
+                        int innerFlags = in.readUnsignedShort();
+                        if (thisClass.equals(innerClass)) {
+                            accessFlags = innerFlags;
+                        }
+                    }
+                } else {
+                    skip(length);
+                }
+            }
+            return new ClassMetadata(accessFlags, publicNoArgConstructor, annotations);
+        }
+
+        private void readConstantPool() throws IOException {
+            constants = new Object[in.readUnsignedShort()];
+            for (int i = 1; i < constants.length; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1: // Utf8
+                        constants[i] = in.readUTF();
+                        break;
+                    case 3: // Integer
+                        constants[i] = in.readInt();
+                        break;
+                    case 4: // Float
+                        constants[i] = in.readFloat();
+                        break;
+                    case 5: // Long
+                        constants[i++] = in.readLong();
+                        break;
+                    case 6: // Double
+                        constants[i++] = in.readDouble();
+                        break;
+                    case 7: // Class
+                        constants[i] = new int[]{in.readUnsignedShort()};
+                        break;
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        skip(2);
+                        break;
+                    case 15: // MethodHandle
+                        skip(3);
+                        break;
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        skip(4);
+                        break;
+                    default:
+                        throw new IOException("Unknown constant pool tag " + tag);
+                }
+            }
+        }
+
+        private Map<String, Map<String, Object>> readAnnotations() throws IOException {
+            int count = in.readUnsignedShort();
+            Map<String, Map<String, Object>> annotations = new LinkedHashMap<String, Map<String, Object>>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String type = typeName(utf8(in.readUnsignedShort()));
+                annotations.put(type, readAnnotationElements());
+            }
+            return Collections.unmodifiableMap(annotations);
+        }
+
+        private Map<String, Object> readAnnotationElements() throws IOException {
+            int count = in.readUnsignedShort();
+            if (count == 0) {
+                return Collections.emptyMap();
+            }
+            Map<String, Object> elements = new HashMap<String, Object>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String name = utf8(in.readUnsignedShort());
+                elements.put(name, readElementValue());
+            }
+            return Collections.unmodifiableMap(elements);
+        }
+
+        private Object readElementValue() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 'B':
+                    return ((Integer) constants[in.readUnsignedShort()]).byteValue();
+                case 'C':
+                    return (char) ((Integer) constants[in.readUnsignedShort()]).intValue();
+                case 'S':
+                    return ((Integer) constants[in.readUnsignedShort()]).shortValue();
+                case 'Z':
+                    return ((Integer) constants[in.readUnsignedShort()]) != 0;
+                case 'I':
+                case 'J':
+                case 'F':
+                case 'D':
+                    return constants[in.readUnsignedShort()];
+                case 's':
+                    return utf8(in.readUnsignedShort());
+                case 'e':
+                    in.readUnsignedShort(); // enum type
+                    return utf8(in.readUnsignedShort());
+                case 'c':
+                    return typeName(utf8(in.readUnsignedShort()));
+                case '@':
+                    in.readUnsignedShort(); // annotation type
+                    return readAnnotationElements();
+                case '[':
+                    int count = in.readUnsignedShort();
+                    List<Object> values = new ArrayList<Object>(count);
+                    for (int i = 0; i < count; i++) {
+                        values.add(readElementValue());
+                    }
+                    return Collections.unmodifiableList(values);
+                default:
+                    throw new IOException("Unknown element value tag " + (char) tag);
+            }
+        }
+
+        private void skipAttributes() throws IOException {
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                skip(2);
+                skip(in.readInt());
+            }
+        }
+
+        private void skip(int n) throws IOException {
+            while (n > 0) {
+                int skipped = in.skipBytes(n);
+                if (skipped <= 0) {
+                    in.readByte(); // throws EOFException at the end of the stream
+                    skipped = 1;
+                }
+                n -= skipped;
+            }
+        }
+
+        private String utf8(int index) {
+            return (String) constants[index];
+        }
+
+        private String className(int index) {
+            return utf8(((int[]) constants[index])[0]).replace('/', '.');
+        }
+
+        /**
+         * @return class name for a field descriptor of a class, the descriptor itself for other types
+         */
+        private static String typeName(String descriptor) {
+            if (descriptor.startsWith("L") && descriptor.endsWith(";")) {
+                return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+            }
+            return descriptor;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Contents of bundle entries by path, bounded by the total number of bytes. The least recently read entries
+ * are evicted first. Entries are removed explicitly when the bundle they have been read from changes, and
+ * ignored by look ups once another bundle comes first for their path.
+ * All methods are synchronized, since every read changes the order of entries.
+ */
+final class EntryContentCache {
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long bytes;
+
+    /**
+     * @param maxBytes maximum total size of cached contents. Contents bigger than this are never cached.
+     */
+    EntryContentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param bundleId id of the bundle the content must have been read from
+     * @return a read only view of the cached content of the given path, positioned at its start,
+     * null if it is not cached or has been read from another bundle
+     */
+    synchronized ByteBuffer get(String path, long bundleId) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.bundleId == bundleId ? entry.content.duplicate() : null;
+    }
+
+    /**
+     * Caches the given read only content, evicting the least recently read entries as needed.
+     *
+     * @return the cached entry, which can be passed to {@link #remove(String, Entry)}, null if the content
+     * is too big to be cached
+     */
+    synchronized Entry put(String path, long bundleId, ByteBuffer content) {
+        if (content.remaining() > maxBytes) {
+            return null;
+        }
+        Entry entry = new Entry(bundleId, content);
+        Entry old = entries.put(path, entry);
+        if (old != null) {
+            bytes -= old.content.remaining();
+        }
+        bytes += content.remaining();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().content.remaining();
+            eldest.remove();
+        }
+        return entry;
+    }
+
+    /**
+     * Removes the given entry unless it has been replaced in the mean time.
+     */
+    synchronized void remove(String path, Entry entry) {
+        if (entries.get(path) == entry) {
+            entries.remove(path);
+            bytes -= entry.content.remaining();
+        }
+    }
+
+    /**
+     * Removes every entry read from the given bundle.
+     */
+    synchronized void invalidate(long bundleId) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.bundleId == bundleId) {
+                bytes -= entry.content.remaining();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return total size of cached contents in bytes
+     */
+    synchronized long size() {
+        return bytes;
+    }
+
+    static final class Entry {
+        private final long bundleId;
+        private final ByteBuffer content;
+
+        private Entry(long bundleId, ByteBuffer content) {
+            this.bundleId = bundleId;
+            this.content = content;
+        }
+    }
+}
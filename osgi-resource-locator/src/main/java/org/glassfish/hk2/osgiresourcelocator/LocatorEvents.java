@@ -0,0 +1,491 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JDK Flight Recorder events of this bundle. This bundle is compiled for Java versions without JFR, so the event
+ * types are defined at run time through jdk.jfr.EventFactory, which is only done once a recording is running.
+ * Until then, every begin method returns null after reading a single volatile field, and callers skip
+ * the rest, so there is no cost when nobody records. On a JVM without JFR, nothing is ever recorded.
+ * <p/>
+ * Events are committed with the usual JFR fields, including the duration between begin and commit.
+ */
+final class LocatorEvents {
+    private static final Logger logger = Logger.getLogger(LocatorEvents.class.getPackage().getName());
+
+    private static final String CATEGORY = "OSGi Resource Locator";
+
+    private static final EventType LOOKUP = new EventType("Lookup", "Locator Lookup",
+            "Look up of the providers of a service or of the bundles containing a resource",
+            new Field(String.class, "operation", "Operation"),
+            new Field(String.class, "name", "Name"),
+            new Field(int.class, "candidates", "Candidates", "Number of bundles providing the service or resource"),
+            new Field(int.class, "classesLoaded", "Classes Loaded"));
+
+    private static final EventType PARSE = new EventType("Parse", "Service Files Parse",
+            "Reading of META-INF/services files of a bundle",
+            new Field(long.class, "bundleId", "Bundle Id"),
+            new Field(int.class, "files", "Files"),
+            new Field(long.class, "bytes", "Bytes"));
+
+    private static final EventType CLASS_LOAD_FAILURE = new EventType("ClassLoadFailure", "Provider Class Load Failure",
+            "A provider class named in a service file could not be loaded by its bundle",
+            new Field(long.class, "bundleId", "Bundle Id"),
+            new Field(String.class, "serviceName", "Service Name"),
+            new Field(String.class, "className", "Class Name"),
+            new Field(String.class, "cause", "Cause"));
+
+    private static final EventType INDEX_UPDATE = new EventType("IndexUpdate", "Locator Index Update",
+            "Replacement of the entries of some bundles in an index",
+            new Field(String.class, "index", "Index"),
+            new Field(int.class, "bundles", "Bundles"),
+            new Field(long.class, "entries", "Entries", "Size of the index after the update"));
+
+    /**
+     * True while at least one recording is running.
+     */
+    private static volatile boolean recording;
+
+    /**
+     * Listener registered with the flight recorder, null if none. Guarded by LocatorEvents.class.
+     */
+    private static RecordingTracker tracker;
+
+    static {
+        start();
+    }
+
+    private LocatorEvents() {
+    }
+
+    /**
+     * Starts following recordings, unless already done. Events are recorded from then on.
+     */
+    static synchronized void start() {
+        if (tracker == null) {
+            tracker = RecordingTracker.start();
+        }
+    }
+
+    /**
+     * Stops following recordings and stops recording events. The listener registered with the JVM wide
+     * flight recorder would otherwise keep the class loader of this bundle alive after the bundle is stopped.
+     */
+    static synchronized void stop() {
+        if (tracker != null) {
+            tracker.stop();
+            tracker = null;
+        }
+        recording = false;
+    }
+
+    /**
+     * @return an event to fill in and commit when the look up ends, null if nothing is being recorded
+     */
+    static Lookup beginLookup(String operation, String name) {
+        if (!recording) {
+            return null;
+        }
+        Object event = LOOKUP.begin();
+        return event != null ? new Lookup(event, operation, name) : null;
+    }
+
+    /**
+     * @return an event to fill in and commit when the service files of the bundle have been read,
+     * null if nothing is being recorded
+     */
+    static Parse beginParse(long bundleId) {
+        if (!recording) {
+            return null;
+        }
+        Object event = PARSE.begin();
+        return event != null ? new Parse(event, bundleId) : null;
+    }
+
+    /**
+     * @return an event to commit when the index has been updated, null if nothing is being recorded
+     */
+    static IndexUpdate beginIndexUpdate(String index) {
+        if (!recording) {
+            return null;
+        }
+        Object event = INDEX_UPDATE.begin();
+        return event != null ? new IndexUpdate(event, index) : null;
+    }
+
+    static void classLoadFailed(long bundleId, String serviceName, String className, Throwable cause) {
+        if (!recording) {
+            return;
+        }
+        Object event = CLASS_LOAD_FAILURE.begin();
+        if (event != null) {
+            CLASS_LOAD_FAILURE.commit(event, bundleId, serviceName, className, String.valueOf(cause));
+        }
+    }
+
+    static final class Lookup {
+        private final Object event;
+        private final String operation;
+        private final String name;
+        private int candidates;
+        private int classesLoaded;
+
+        private Lookup(Object event, String operation, String name) {
+            this.event = event;
+            this.operation = operation;
+            this.name = name;
+        }
+
+        void setCandidates(int candidates) {
+            this.candidates = candidates;
+        }
+
+        void classLoaded() {
+            classesLoaded++;
+        }
+
+        void commit() {
+            LOOKUP.commit(event, operation, name, candidates, classesLoaded);
+        }
+    }
+
+    static final class Parse {
+        private final Object event;
+        private final long bundleId;
+        private int files;
+        private long bytes;
+
+        private Parse(Object event, long bundleId) {
+            this.event = event;
+            this.bundleId = bundleId;
+        }
+
+        /**
+         * Counts a service file and the bytes read from the returned stream.
+         */
+        InputStream count(InputStream is) {
+            files++;
+            return new FilterInputStream(is) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        bytes++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        bytes += n;
+                    }
+                    return n;
+                }
+            };
+        }
+
+        void commit() {
+            PARSE.commit(event, bundleId, files, bytes);
+        }
+    }
+
+    static final class IndexUpdate {
+        private final Object event;
+        private final String index;
+
+        private IndexUpdate(Object event, String index) {
+            this.event = event;
+            this.index = index;
+        }
+
+        void commit(int bundles, long entries) {
+            INDEX_UPDATE.commit(event, index, bundles, entries);
+        }
+    }
+
+    private static final class Field {
+        final Class<?> type;
+        final String name;
+        final String label;
+        final String description;
+
+        Field(Class<?> type, String name, String label) {
+            this(type, name, label, null);
+        }
+
+        Field(Class<?> type, String name, String label, String description) {
+            this.type = type;
+            this.name = name;
+            this.label = label;
+            this.description = description;
+        }
+    }
+
+    /**
+     * An event type, which is registered with JFR the first time an event of the type is begun.
+     */
+    private static final class EventType {
+        private final String name;
+        private final String label;
+        private final String description;
+        private final Field[] fields;
+
+        /**
+         * The jdk.jfr.EventFactory, null until created or if it can't be created.
+         */
+        private volatile Object factory;
+        private boolean created;
+
+        EventType(String name, String label, String description, Field... fields) {
+            this.name = LocatorEvents.class.getPackage().getName() + "." + name;
+            this.label = label;
+            this.description = description;
+            this.fields = fields;
+        }
+
+        /**
+         * @return a begun jdk.jfr.Event, null if JFR is not usable
+         */
+        Object begin() {
+            Object f = factory;
+            if (f == null) {
+                f = createFactory();
+                if (f == null) {
+                    return null;
+                }
+            }
+            try {
+                Object event = Jfr.newEvent.invoke(f);
+                Jfr.begin.invoke(event);
+                return event;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        void commit(Object event, Object... values) {
+            try {
+                Jfr.end.invoke(event);
+                if ((Boolean) Jfr.shouldCommit.invoke(event)) {
+                    for (int i = 0; i < values.length; i++) {
+                        Jfr.set.invoke(event, i, values[i]);
+                    }
+                    Jfr.commit.invoke(event);
+                }
+            } catch (Exception e) {
+                logger.log(Level.FINE, "Unable to commit " + name, e);
+            }
+        }
+
+        private synchronized Object createFactory() {
+            if (!created) {
+                created = true;
+                try {
+                    List<Object> annotations = new ArrayList<Object>();
+                    annotations.add(Jfr.annotation("jdk.jfr.Name", name));
+                    annotations.add(Jfr.annotation("jdk.jfr.Label", label));
+                    annotations.add(Jfr.annotation("jdk.jfr.Description", description));
+                    annotations.add(Jfr.annotation("jdk.jfr.Category", new String[]{CATEGORY}));
+                    List<Object> descriptors = new ArrayList<Object>();
+                    for (Field field : fields) {
+                        List<Object> fieldAnnotations = new ArrayList<Object>();
+                        fieldAnnotations.add(Jfr.annotation("jdk.jfr.Label", field.label));
+                        if (field.description != null) {
+                            fieldAnnotations.add(Jfr.annotation("jdk.jfr.Description", field.description));
+                        }
+                        descriptors.add(Jfr.valueDescriptor.newInstance(field.type, field.name, fieldAnnotations));
+                    }
+                    factory = Jfr.create.invoke(null, annotations, descriptors);
+                } catch (Exception e) {
+                    logger.log(Level.FINE, "Unable to define " + name, e);
+                } catch (LinkageError e) {
+                    logger.log(Level.FINE, "Unable to define " + name, e);
+                }
+            }
+            return factory;
+        }
+    }
+
+    /**
+     * Reflective access to jdk.jfr, only initialized when a recording has been seen, so JFR is available.
+     */
+    private static final class Jfr {
+        static final Method create;
+        static final Method newEvent;
+        static final Method begin;
+        static final Method end;
+        static final Method shouldCommit;
+        static final Method set;
+        static final Method commit;
+        static final Constructor<?> annotationElement;
+        static final Constructor<?> valueDescriptor;
+
+        static {
+            try {
+                Class<?> eventFactory = jfrClass("jdk.jfr.EventFactory");
+                Class<?> event = jfrClass("jdk.jfr.Event");
+                create = eventFactory.getMethod("create", List.class, List.class);
+                newEvent = eventFactory.getMethod("newEvent");
+                begin = event.getMethod("begin");
+                end = event.getMethod("end");
+                shouldCommit = event.getMethod("shouldCommit");
+                set = event.getMethod("set", int.class, Object.class);
+                commit = event.getMethod("commit");
+                annotationElement = jfrClass("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+                valueDescriptor = jfrClass("jdk.jfr.ValueDescriptor")
+                        .getConstructor(Class.class, String.class, List.class);
+            } catch (Exception e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        static Object annotation(String type, Object value) throws Exception {
+            return annotationElement.newInstance(jfrClass(type), value);
+        }
+    }
+
+    /**
+     * Keeps {@link #recording} up to date through a jdk.jfr.FlightRecorderListener.
+     */
+    private static final class RecordingTracker implements InvocationHandler {
+        /**
+         * Running recordings. Guarded by this.
+         */
+        private final Set<Object> running = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        private Class<?> listenerClass;
+        private volatile Object listener;
+
+        /**
+         * @return the tracker registered with the flight recorder, null if there is no flight recorder
+         */
+        static RecordingTracker start() {
+            RecordingTracker tracker = new RecordingTracker();
+            try {
+                Class<?> flightRecorder = jfrClass("jdk.jfr.FlightRecorder");
+                Class<?> listenerClass = jfrClass("jdk.jfr.FlightRecorderListener");
+                Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(),
+                        new Class<?>[]{listenerClass}, tracker);
+                flightRecorder.getMethod("addListener", listenerClass).invoke(null, listener);
+                tracker.listenerClass = listenerClass;
+                tracker.listener = listener;
+                // Recordings started before the listener was added, e.g., by -XX:StartFlightRecording
+                if ((Boolean) flightRecorder.getMethod("isInitialized").invoke(null)) {
+                    Object recorder = flightRecorder.getMethod("getFlightRecorder").invoke(null);
+                    for (Object r : (List<?>) flightRecorder.getMethod("getRecordings").invoke(recorder)) {
+                        tracker.stateChanged(r);
+                    }
+                }
+                return tracker;
+            } catch (ClassNotFoundException e) {
+                // No JFR in this JVM
+            } catch (Throwable t) {
+                logger.log(Level.FINE, "Flight recorder events are disabled", t);
+                tracker.stop();
+                recording = false;
+            }
+            return null;
+        }
+
+        void stop() {
+            if (listener == null) {
+                return; // never registered
+            }
+            try {
+                jfrClass("jdk.jfr.FlightRecorder").getMethod("removeListener", listenerClass).invoke(null, listener);
+            } catch (Throwable t) {
+                logger.log(Level.FINE, "Unable to remove the flight recorder listener", t);
+            }
+            listener = null;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("recordingStateChanged")) {
+                stateChanged(args[0]);
+                return null;
+            } else if (method.getName().equals("equals")) {
+                return proxy == args[0];
+            } else if (method.getName().equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (method.getName().equals("toString")) {
+                return LocatorEvents.class.getName() + "$RecordingTracker";
+            }
+            return null; // recorderInitialized
+        }
+
+        private synchronized void stateChanged(Object recording) throws Exception {
+            Object state = recording.getClass().getMethod("getState").invoke(recording);
+            if ("RUNNING".equals(String.valueOf(state))) {
+                running.add(recording);
+            } else {
+                running.remove(recording);
+            }
+            if (listener != null) { // not stopped
+                LocatorEvents.recording = !running.isEmpty();
+            }
+        }
+    }
+
+    /**
+     * jdk.jfr is not visible through the class loader of this bundle unless the framework delegates it,
+     * so it is loaded from the system class loader, which sees every module of the JDK.
+     */
+    private static Class<?> jfrClass(String name) throws ClassNotFoundException {
+        return Class.forName(name, false, ClassLoader.getSystemClassLoader());
+    }
+}
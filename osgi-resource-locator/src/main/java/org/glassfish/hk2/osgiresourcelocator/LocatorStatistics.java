@@ -0,0 +1,381 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records runtime statistics of {@link ServiceLoaderImpl} and {@link ResourceFinderImpl}.
+ * Recording never blocks: counters and latency histograms are striped across several cells, which are
+ * only summed up when statistics are read, so that concurrent threads rarely update the same cache line.
+ */
+final class LocatorStatistics implements LocatorStatisticsMXBean {
+
+    enum Operation {
+        LOOKUP_PROVIDER_CLASSES("lookupProviderClasses"),
+        LOOKUP_PROVIDER_CLASSES_BATCH("lookupProviderClassesBatch"),
+        LOOKUP_PROVIDER_INSTANCES("lookupProviderInstances"),
+        LOOKUP_PROVIDER_DESCRIPTORS("lookupProviderDescriptors"),
+        FIND_ENTRY("findEntry"),
+        FIND_ENTRIES("findEntries"),
+        READ_ENTRY("readEntry"),
+        BUNDLE_EVENT("bundleEvent"),
+        INDEX_UPDATE("indexUpdate");
+
+        private final String displayName;
+
+        Operation(String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    private static final int STRIPES = stripeCount();
+
+    private final Histogram[] histograms = new Histogram[Operation.values().length];
+    /**
+     * Look ups by service name. Services looked up after {@link #MAX_SERVICE_NAMES} names are counted
+     * under {@link LocatorStatisticsMXBean#OTHER_SERVICES}, so that the map stays bounded.
+     */
+    private final ConcurrentMap<String, Counter> serviceLookups = new ConcurrentHashMap<String, Counter>();
+    private static final int MAX_SERVICE_NAMES = 1000;
+    private final Counter classLoadFailures = new Counter();
+    private final Counter providerClassCacheHits = new Counter();
+    private final Counter providerClassCacheMisses = new Counter();
+    private final Counter resourceIndexHits = new Counter();
+    private final Counter resourceIndexMisses = new Counter();
+    private final Counter resourceContentCacheHits = new Counter();
+    private final Counter resourceContentCacheMisses = new Counter();
+    private volatile long serviceIndexSize;
+    private volatile long providerIndexSize;
+    private volatile long resourceIndexSize;
+    private volatile long resourceContentCacheSize;
+    private volatile long initialScanTime;
+
+    LocatorStatistics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records a call of an operation which started at the given {@link System#nanoTime()}.
+     */
+    void record(Operation operation, long startTime) {
+        histograms[operation.ordinal()].record(System.nanoTime() - startTime);
+    }
+
+    void serviceLookedUp(String serviceName) {
+        Counter counter = serviceLookups.get(serviceName);
+        if (counter == null && serviceLookups.size() >= MAX_SERVICE_NAMES) {
+            serviceName = LocatorStatisticsMXBean.OTHER_SERVICES;
+            counter = serviceLookups.get(serviceName);
+        }
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = serviceLookups.putIfAbsent(serviceName, newCounter);
+            if (counter == null) counter = newCounter;
+        }
+        counter.increment();
+    }
+
+    void classLoadFailed() {
+        classLoadFailures.increment();
+    }
+
+    void providerClassCacheHit(boolean hit) {
+        (hit ? providerClassCacheHits : providerClassCacheMisses).increment();
+    }
+
+    void resourceIndexHit(boolean hit) {
+        (hit ? resourceIndexHits : resourceIndexMisses).increment();
+    }
+
+    void resourceContentCacheHit(boolean hit) {
+        (hit ? resourceContentCacheHits : resourceContentCacheMisses).increment();
+    }
+
+    void setServiceIndexSize(long serviceNames, long providerNames) {
+        serviceIndexSize = serviceNames;
+        providerIndexSize = providerNames;
+    }
+
+    void setResourceIndexSize(long paths) {
+        resourceIndexSize = paths;
+    }
+
+    void setResourceContentCacheSize(long bytes) {
+        resourceContentCacheSize = bytes;
+    }
+
+    void setInitialScanTime(long nanos) {
+        initialScanTime = nanos;
+    }
+
+    public Map<String, Long> getCallCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Operation operation : Operation.values()) {
+            result.put(operation.displayName, histograms[operation.ordinal()].count());
+        }
+        return result;
+    }
+
+    public Map<String, Long> getLatencyP50() {
+        return percentiles(0.5);
+    }
+
+    public Map<String, Long> getLatencyP99() {
+        return percentiles(0.99);
+    }
+
+    public Map<String, Long> getLatencyMax() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Operation operation : Operation.values()) {
+            result.put(operation.displayName, histograms[operation.ordinal()].max());
+        }
+        return result;
+    }
+
+    private Map<String, Long> percentiles(double p) {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Operation operation : Operation.values()) {
+            result.put(operation.displayName, histograms[operation.ordinal()].percentile(p));
+        }
+        return result;
+    }
+
+    public Map<String, Long> getServiceLookupCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : serviceLookups.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    public long getClassLoadFailures() {
+        return classLoadFailures.sum();
+    }
+
+    public List<String> getProviderLoadFailures() {
+        List<String> result = new ArrayList<String>();
+        List<ProviderLoadFailure> failures = ServiceLoader.getProviderLoadFailures();
+        if (failures != null) {
+            for (ProviderLoadFailure failure : failures) {
+                result.add(failure.toString());
+            }
+        }
+        return result;
+    }
+
+    public double getProviderClassCacheHitRatio() {
+        return ratio(providerClassCacheHits.sum(), providerClassCacheMisses.sum());
+    }
+
+    public double getResourceIndexHitRatio() {
+        return ratio(resourceIndexHits.sum(), resourceIndexMisses.sum());
+    }
+
+    public double getResourceContentCacheHitRatio() {
+        return ratio(resourceContentCacheHits.sum(), resourceContentCacheMisses.sum());
+    }
+
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    public long getServiceIndexSize() {
+        return serviceIndexSize;
+    }
+
+    public long getProviderIndexSize() {
+        return providerIndexSize;
+    }
+
+    public long getResourceIndexSize() {
+        return resourceIndexSize;
+    }
+
+    public long getResourceContentCacheSize() {
+        return resourceContentCacheSize;
+    }
+
+    public long getInitialScanTime() {
+        return initialScanTime;
+    }
+
+    public void reset() {
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+        serviceLookups.clear();
+        classLoadFailures.reset();
+        providerClassCacheHits.reset();
+        providerClassCacheMisses.reset();
+        resourceIndexHits.reset();
+        resourceIndexMisses.reset();
+        resourceContentCacheHits.reset();
+        resourceContentCacheMisses.reset();
+    }
+
+    private static int stripeCount() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < 16) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    /**
+     * @return the stripe to be used by the current thread
+     */
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * A counter whose cells are spread apart so that each of them lives in its own cache line.
+     */
+    private static final class Counter {
+        private static final int PADDING = 8;
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        void increment() {
+            cells.incrementAndGet(stripe() * PADDING);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+
+        void reset() {
+            for (int i = 0; i < STRIPES; i++) {
+                cells.set(i * PADDING, 0);
+            }
+        }
+    }
+
+    /**
+     * A latency histogram with four linear sub-buckets per power of two, which bounds the relative error
+     * of a reported percentile to 25%. Each stripe has its own set of buckets.
+     */
+    private static final class Histogram {
+        private static final int BUCKETS = 256;
+        private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.incrementAndGet(stripe() * BUCKETS + bucket(nanos));
+            long currentMax = max.get();
+            while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+                currentMax = max.get();
+            }
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double p) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                counts[i % BUCKETS] += buckets.get(i);
+                total += buckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += counts[b];
+                if (seen >= rank) {
+                    return Math.min(upperBound(b), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            max.set(0);
+        }
+
+        private static int bucket(long value) {
+            if (value < 4) {
+                return (int) value;
+            }
+            int log2 = 63 - Long.numberOfLeadingZeros(value);
+            return (log2 - 1) * 4 + (int) ((value >>> (log2 - 2)) & 3);
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int log2 = bucket / 4 + 1;
+            long lowerBound = (4L + bucket % 4) << (log2 - 2);
+            return lowerBound + (1L << (log2 - 2)) - 1;
+        }
+    }
+}
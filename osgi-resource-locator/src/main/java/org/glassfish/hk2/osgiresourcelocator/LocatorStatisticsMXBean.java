@@ -0,0 +1,141 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface exposing runtime statistics of {@link ServiceLoader} and {@link ResourceFinder}.
+ * It is registered in the platform MBean server under {@link #OBJECT_NAME} while this bundle is active.
+ * Latencies are reported in nanoseconds and are accurate to within 25%.
+ */
+public interface LocatorStatisticsMXBean {
+
+    String OBJECT_NAME = "org.glassfish.hk2.osgiresourcelocator:type=LocatorStatistics";
+
+    /**
+     * Key of {@link #getServiceLookupCounts()} counting services which did not get a key of their own.
+     */
+    String OTHER_SERVICES = "<other>";
+
+    /**
+     * @return number of calls by operation name
+     */
+    Map<String, Long> getCallCounts();
+
+    /**
+     * @return median latency by operation name
+     */
+    Map<String, Long> getLatencyP50();
+
+    /**
+     * @return 99th percentile latency by operation name
+     */
+    Map<String, Long> getLatencyP99();
+
+    /**
+     * @return maximum latency by operation name
+     */
+    Map<String, Long> getLatencyMax();
+
+    /**
+     * @return number of look ups and subscriptions by service name. Services beyond the first thousand
+     * are counted together under {@link #OTHER_SERVICES}.
+     */
+    Map<String, Long> getServiceLookupCounts();
+
+    /**
+     * @return number of times a provider class named in a service file could not be loaded
+     */
+    long getClassLoadFailures();
+
+    /**
+     * @return a description of every provider class which is currently skipped because it could not be loaded
+     * @see ServiceLoader#getProviderLoadFailures()
+     */
+    List<String> getProviderLoadFailures();
+
+    /**
+     * @return fraction of provider class look ups answered from the resolved provider class cache
+     */
+    double getProviderClassCacheHitRatio();
+
+    /**
+     * @return fraction of resource look ups answered from the resource index
+     */
+    double getResourceIndexHitRatio();
+
+    /**
+     * @return fraction of {@link ResourceFinder#readEntry(String)} calls answered from the entry content cache
+     */
+    double getResourceContentCacheHitRatio();
+
+    /**
+     * @return number of distinct service names in the service index
+     */
+    long getServiceIndexSize();
+
+    /**
+     * @return number of provider names in the service index
+     */
+    long getProviderIndexSize();
+
+    /**
+     * @return number of paths in the resource index, including paths which are known not to exist
+     */
+    long getResourceIndexSize();
+
+    /**
+     * @return total size in bytes of entry contents in the entry content cache
+     */
+    long getResourceContentCacheSize();
+
+    /**
+     * @return time taken by the initial scan of existing bundles
+     */
+    long getInitialScanTime();
+
+    /**
+     * Resets all counters and latencies. Index and cache sizes are not affected.
+     */
+    void reset();
+}
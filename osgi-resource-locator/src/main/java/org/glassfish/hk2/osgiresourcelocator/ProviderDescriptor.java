@@ -0,0 +1,137 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import java.util.Map;
+
+/**
+ * Describes a provider listed in a META-INF/services file of a bundle. The information is read from the class file
+ * of the provider, without loading the class, so callers can sort and filter providers, e.g., by annotations like
+ * javax.annotation.Priority, before paying for class loading.
+ * The class file is looked up in the bundle providing the service file. If it is not found there, e.g., because it is
+ * in an embedded jar or in a fragment, {@link #isMetadataAvailable()} returns false, as do the other boolean methods,
+ * and there are no annotations.
+ *
+ * @see ServiceLoader#lookupProviderDescriptors(Class)
+ */
+public abstract class ProviderDescriptor {
+    private final String providerClassName;
+    private final long bundleId;
+    private final ClassMetadata metadata;
+
+    /*package*/ ProviderDescriptor(String providerClassName, long bundleId, ClassMetadata metadata) {
+        this.providerClassName = providerClassName;
+        this.bundleId = bundleId;
+        this.metadata = metadata;
+    }
+
+    public String getProviderClassName() {
+        return providerClassName;
+    }
+
+    /**
+     * @return id of the bundle containing the service file, which is the bundle used to load the provider class
+     */
+    public long getBundleId() {
+        return bundleId;
+    }
+
+    /**
+     * @return true if the class file could be found and read
+     */
+    public boolean isMetadataAvailable() {
+        return metadata.isAvailable();
+    }
+
+    public boolean isPublic() {
+        return metadata.isPublic();
+    }
+
+    /**
+     * @return true if the class is neither an interface nor abstract
+     */
+    public boolean isConcrete() {
+        return metadata.isConcrete();
+    }
+
+    public boolean hasPublicNoArgConstructor() {
+        return metadata.hasPublicNoArgConstructor();
+    }
+
+    /**
+     * Returns runtime visible annotations of the provider class, not including inherited ones.
+     * Element values are represented as follows: primitives by their wrapper, strings as strings, enum constants
+     * by their name, classes by their name, nested annotations by the map of their elements and arrays by lists.
+     * Elements having their default value are not included, as the class file does not contain them.
+     *
+     * @return element values by element name, by annotation class name
+     */
+    public Map<String, Map<String, Object>> getAnnotations() {
+        return metadata.getAnnotations();
+    }
+
+    public boolean hasAnnotation(String annotationClassName) {
+        return metadata.getAnnotations().containsKey(annotationClassName);
+    }
+
+    /**
+     * @return value of the given element of the given annotation, null if either of them is not present
+     * @see #getAnnotations()
+     */
+    public Object getAnnotationValue(String annotationClassName, String elementName) {
+        Map<String, Object> elements = metadata.getAnnotations().get(annotationClassName);
+        return elements != null ? elements.get(elementName) : null;
+    }
+
+    /**
+     * Loads the provider class using its bundle.
+     *
+     * @return the provider class, null if it does not see the same service class as the one which was looked up.
+     * See {@link ServiceLoader#lookupProviderClasses(Class)} for why that matters.
+     * @throws ClassNotFoundException if the bundle can't load the class
+     */
+    public abstract Class loadProviderClass() throws ClassNotFoundException;
+
+    @Override
+    public String toString() {
+        return providerClassName + " from bundle " + bundleId;
+    }
+}
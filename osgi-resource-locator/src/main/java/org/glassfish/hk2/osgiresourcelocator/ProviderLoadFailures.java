@@ -0,0 +1,112 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import org.osgi.framework.Bundle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers provider classes which could not be loaded, per bundle id, bundle version and class name, so that
+ * look ups don't search for them again and again. Every failure is logged once, and recorded as a flight
+ * recorder event every time it happens.
+ * Entries of a bundle must be removed by {@link #invalidate(long)} when the bundle is resolved or refreshed,
+ * since a new wiring may make the class loadable without changing the bundle. Failures of a bundle which
+ * could not be resolved are not remembered at all, as it is not the provider which is broken.
+ */
+final class ProviderLoadFailures {
+    private static final Logger logger = Logger.getLogger(ProviderLoadFailures.class.getPackage().getName());
+
+    private final ConcurrentMap<Long, ConcurrentMap<String, ProviderLoadFailure>> failures =
+            new ConcurrentHashMap<Long, ConcurrentMap<String, ProviderLoadFailure>>();
+
+    /**
+     * @return the failure recorded for the given class and the current version of the given bundle, null if none
+     */
+    ProviderLoadFailure get(Bundle bundle, String className) {
+        ConcurrentMap<String, ProviderLoadFailure> failuresOfBundle = failures.get(bundle.getBundleId());
+        if (failuresOfBundle == null) {
+            return null;
+        }
+        ProviderLoadFailure failure = failuresOfBundle.get(className);
+        return failure != null && failure.getBundleLastModified() == bundle.getLastModified() ? failure : null;
+    }
+
+    void add(Bundle bundle, String serviceName, String className, Throwable cause) {
+        LocatorEvents.classLoadFailed(bundle.getBundleId(), serviceName, className, cause);
+        if (bundle.getState() == Bundle.INSTALLED) {
+            return; // tried again once the bundle gets resolved
+        }
+        ConcurrentMap<String, ProviderLoadFailure> failuresOfBundle = failures.get(bundle.getBundleId());
+        if (failuresOfBundle == null) {
+            failuresOfBundle = new ConcurrentHashMap<String, ProviderLoadFailure>(4);
+            ConcurrentMap<String, ProviderLoadFailure> existing =
+                    failures.putIfAbsent(bundle.getBundleId(), failuresOfBundle);
+            if (existing != null) {
+                failuresOfBundle = existing;
+            }
+        }
+        ProviderLoadFailure failure = new ProviderLoadFailure(serviceName, className, bundle.getBundleId(),
+                bundle.getLastModified(), cause);
+        ProviderLoadFailure previous = failuresOfBundle.put(className, failure);
+        if (previous == null || previous.getBundleLastModified() != failure.getBundleLastModified()) {
+            logger.log(Level.WARNING, "Unable to load " + className + ", which " + bundle
+                    + " lists as a provider of " + serviceName + ". It will be ignored until the bundle changes.", cause);
+        }
+    }
+
+    void invalidate(long bundleId) {
+        failures.remove(bundleId);
+    }
+
+    List<ProviderLoadFailure> getAll() {
+        List<ProviderLoadFailure> result = new ArrayList<ProviderLoadFailure>();
+        for (ConcurrentMap<String, ProviderLoadFailure> failuresOfBundle : failures.values()) {
+            result.addAll(failuresOfBundle.values());
+        }
+        return result;
+    }
+}
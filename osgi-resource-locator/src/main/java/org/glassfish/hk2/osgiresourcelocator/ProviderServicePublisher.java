@@ -0,0 +1,318 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoaderImpl.ProvidersPerBundle;
+
+/**
+ * Registers every provider found in META-INF/services as an OSGi service, see
+ * {@link ServiceLoaderImpl#PUBLISH_SERVICES_PROP}. Services are registered under the service name by the
+ * bundle context of this bundle, with a {@link ServiceFactory} which loads and instantiates the provider class
+ * only when a bundle gets the service. The framework keeps one instance per bundle getting it.
+ * Registrations of a bundle are replaced whenever its providers are replaced in the index.
+ */
+final class ProviderServicePublisher {
+    private static final Logger logger = Logger.getLogger(ProviderServicePublisher.class.getPackage().getName());
+
+    private final BundleContext bundleContext;
+    private final ProviderLoadFailures loadFailures;
+
+    /**
+     * Registrations by bundle id, together with the providers they have been made for. Guarded by this.
+     */
+    private final Map<Long, Registrations> published = new HashMap<Long, Registrations>();
+
+    private boolean closed; // guarded by this
+
+    ProviderServicePublisher(BundleContext bundleContext, ProviderLoadFailures loadFailures) {
+        this.bundleContext = bundleContext;
+        this.loadFailures = loadFailures;
+    }
+
+    /**
+     * Gives the providers of all bundles, as currently indexed.
+     */
+    interface Index {
+        Collection<ProvidersPerBundle> getAllProviders();
+    }
+
+    /**
+     * Makes the registrations match the providers of all bundles given by the index. Only bundles whose
+     * providers are not the same objects as last time are registered again.
+     * <p/>
+     * The index is read and the changes are decided under the lock of this object, so an older snapshot never
+     * replaces a newer one, but the framework is called after releasing the lock. The framework calls service
+     * listeners synchronously, and a listener calling back into the locator must not wait for this lock.
+     */
+    void update(Index index) {
+        List<Registrations> toUnregister = new ArrayList<Registrations>();
+        List<Registrations> toRegister = new ArrayList<Registrations>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            Collection<ProvidersPerBundle> allProviders = index.getAllProviders();
+            Map<Long, ProvidersPerBundle> current = new HashMap<Long, ProvidersPerBundle>(allProviders.size() * 2);
+            for (ProvidersPerBundle providers : allProviders) {
+                current.put(providers.getBundleId(), providers);
+            }
+            Iterator<Registrations> iterator = published.values().iterator();
+            while (iterator.hasNext()) {
+                Registrations registrations = iterator.next();
+                if (current.get(registrations.providers.getBundleId()) != registrations.providers) {
+                    toUnregister.add(registrations);
+                    iterator.remove();
+                }
+            }
+            for (ProvidersPerBundle providers : current.values()) {
+                if (!providers.getServiceToProvidersMap().isEmpty()
+                        && !published.containsKey(providers.getBundleId())) {
+                    Bundle bundle = bundleContext.getBundle(providers.getBundleId());
+                    if (bundle != null && providers.isUpToDate(bundle)) {
+                        // Published right away, so that a later update can unregister it even if it is
+                        // still being registered.
+                        Registrations registrations = new Registrations(bundle, providers);
+                        published.put(providers.getBundleId(), registrations);
+                        toRegister.add(registrations);
+                    }
+                }
+            }
+        }
+        for (Registrations registrations : toUnregister) {
+            registrations.unregister();
+        }
+        for (Registrations registrations : toRegister) {
+            register(registrations);
+        }
+    }
+
+    /**
+     * Unregisters all services. Later updates are ignored.
+     */
+    void close() {
+        List<Registrations> toUnregister;
+        synchronized (this) {
+            closed = true;
+            toUnregister = new ArrayList<Registrations>(published.values());
+            published.clear();
+        }
+        for (Registrations registrations : toUnregister) {
+            registrations.unregister();
+        }
+    }
+
+    private void register(Registrations registrations) {
+        Bundle bundle = registrations.bundle;
+        for (Map.Entry<String, List<String>> entry : registrations.providers.getServiceToProvidersMap().entrySet()) {
+            String serviceName = entry.getKey();
+            for (String providerName : entry.getValue()) {
+                Dictionary<String, Object> properties = new Hashtable<String, Object>();
+                properties.put(ServiceLoaderImpl.SERVICE_NAME_PROPERTY, serviceName);
+                properties.put(ServiceLoaderImpl.PROVIDER_CLASS_PROPERTY, providerName);
+                properties.put(ServiceLoaderImpl.PROVIDER_BUNDLE_ID_PROPERTY, bundle.getBundleId());
+                ServiceRegistration<?> registration;
+                try {
+                    registration = bundleContext.registerService(serviceName,
+                            new ProviderServiceFactory(bundle, serviceName, providerName), properties);
+                } catch (IllegalStateException e) {
+                    // This bundle is stopping, so the framework unregisters everything anyway.
+                    return;
+                }
+                if (!registrations.add(registration)) {
+                    return; // replaced or closed while we were registering
+                }
+            }
+        }
+    }
+
+    /**
+     * Services registered for the providers of a bundle. They may be unregistered by another thread while
+     * they are still being registered, hence the lock of this object.
+     */
+    private static class Registrations {
+        final Bundle bundle;
+        final ProvidersPerBundle providers;
+        private final List<ServiceRegistration<?>> registrations = new ArrayList<ServiceRegistration<?>>();
+        private boolean unregistered;
+
+        Registrations(Bundle bundle, ProvidersPerBundle providers) {
+            this.bundle = bundle;
+            this.providers = providers;
+        }
+
+        /**
+         * @return false if the given registration has been unregistered right away, because these registrations
+         * have already been unregistered
+         */
+        boolean add(ServiceRegistration<?> registration) {
+            synchronized (this) {
+                if (!unregistered) {
+                    registrations.add(registration);
+                    return true;
+                }
+            }
+            unregister(registration);
+            return false;
+        }
+
+        void unregister() {
+            List<ServiceRegistration<?>> toUnregister;
+            synchronized (this) {
+                unregistered = true;
+                toUnregister = new ArrayList<ServiceRegistration<?>>(registrations);
+                registrations.clear();
+            }
+            for (ServiceRegistration<?> registration : toUnregister) {
+                unregister(registration);
+            }
+        }
+
+        private static void unregister(ServiceRegistration<?> registration) {
+            try {
+                registration.unregister();
+            } catch (IllegalStateException e) {
+                // Already unregistered, e.g., because this bundle is stopping.
+            }
+        }
+    }
+
+    /**
+     * Makes an instance of a provider class for every bundle getting the service. Null is returned, which
+     * makes the framework fail the get, if the class can't be loaded or instantiated, or if the bundle getting
+     * the service sees a different service class than the provider.
+     */
+    private class ProviderServiceFactory implements ServiceFactory<Object> {
+        private final Bundle bundle;
+        private final String serviceName;
+        private final String providerName;
+
+        ProviderServiceFactory(Bundle bundle, String serviceName, String providerName) {
+            this.bundle = bundle;
+            this.serviceName = serviceName;
+            this.providerName = providerName;
+        }
+
+        public Object getService(Bundle consumer, ServiceRegistration<Object> registration) {
+            if (loadFailures.get(bundle, providerName) != null) {
+                return null;
+            }
+            final Class providerClass;
+            try {
+                providerClass = loadClassSecured(bundle, providerName);
+            } catch (ClassNotFoundException e) {
+                loadFailures.add(bundle, serviceName, providerName, e);
+                return null;
+            } catch (NoClassDefFoundError e) {
+                loadFailures.add(bundle, serviceName, providerName, e);
+                return null;
+            }
+            if (!isCompatible(consumer, providerClass)) {
+                logger.log(Level.FINE, "{0} does not see the same {1} as {2}",
+                        new Object[]{consumer, serviceName, providerClass});
+                return null;
+            }
+            try {
+                return providerClass.newInstance();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Unable to instantiate " + providerName + " from " + bundle, e);
+                return null;
+            } catch (LinkageError e) {
+                logger.log(Level.WARNING, "Unable to instantiate " + providerName + " from " + bundle, e);
+                return null;
+            }
+        }
+
+        public void ungetService(Bundle consumer, ServiceRegistration<Object> registration, Object service) {
+        }
+
+        /**
+         * @return false if the given bundle sees a service class which the provider class is not assignable to,
+         * true otherwise, including when the bundle does not see the service class at all
+         */
+        private boolean isCompatible(Bundle consumer, Class providerClass) {
+            try {
+                return loadClassSecured(consumer, serviceName).isAssignableFrom(providerClass);
+            } catch (ClassNotFoundException e) {
+                return true;
+            } catch (NoClassDefFoundError e) {
+                return true;
+            } catch (IllegalStateException e) {
+                // The bundle getting the service has been uninstalled in the mean time.
+                return false;
+            }
+        }
+    }
+
+    private static Class loadClassSecured(final Bundle bundle, final String name) throws ClassNotFoundException {
+        if (System.getSecurityManager() != null) {
+            try {
+                return AccessController.doPrivileged(new PrivilegedExceptionAction<Class>() {
+                    public Class run() throws ClassNotFoundException {
+                        return bundle.loadClass(name);
+                    }
+                });
+            } catch (PrivilegedActionException e) {
+                throw ClassNotFoundException.class.cast(e.getException());
+            }
+        } else {
+            return bundle.loadClass(name);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoaderImpl.LazyProviderNames;
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoaderImpl.ProvidersPerBundle;
+import org.osgi.framework.BundleContext;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the providers found in every bundle to a file in the bundle data area of the locator bundle, so that
+ * service files of bundles which have not changed don't have to be read again when the framework restarts.
+ * Every record is keyed by bundle id, location and last modification time, which is what
+ * {@link ServiceLoaderImpl.ProvidersPerBundle#isUpToDate} compares with the installed bundle.
+ *
+ * The file is written using {@link DataOutputStream} in the following format:
+ * <pre>
+ * int magic, int version
+ * int stringCount, stringCount * UTF string              -- every distinct string is written only once
+ * int bundleCount, bundleCount * {
+ *     long bundleId, int location, long lastModified,
+ *     int serviceCount, serviceCount * { int serviceName, int providerCount, providerCount * int providerName }
+ * }
+ * </pre>
+ * where strings are referred to by their index in the string table. A providerCount of -1 stands for a service file
+ * which has not been read yet, see {@link ServiceLoaderImpl#PARSE_MODE_LAZY}.
+ */
+final class ProvidersIndexStore {
+    private static final int MAGIC = 0x4f53524c; // "OSRL"
+    private static final int VERSION = 2;
+
+    private final File file;
+
+    private final BundleContext bundleContext;
+
+    ProvidersIndexStore(File file, BundleContext bundleContext) {
+        this.file = file;
+        this.bundleContext = bundleContext;
+    }
+
+    /**
+     * @return stored providers by bundle id, empty map if nothing has been stored yet
+     * @throws IOException if the file can't be read or is not in the expected format
+     */
+    Map<Long, ProvidersPerBundle> load() throws IOException {
+        Map<Long, ProvidersPerBundle> result = new HashMap<Long, ProvidersPerBundle>();
+        if (!file.isFile()) {
+            return result;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a providers index of version " + VERSION);
+            }
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            int bundleCount = in.readInt();
+            for (int i = 0; i < bundleCount; i++) {
+                long bundleId = in.readLong();
+                String location = strings[in.readInt()];
+                long lastModified = in.readLong();
+                int serviceCount = in.readInt();
+                Map<String, List<String>> serviceToProvidersMap = new HashMap<String, List<String>>(serviceCount * 2);
+                for (int j = 0; j < serviceCount; j++) {
+                    String serviceName = strings[in.readInt()];
+                    int providerCount = in.readInt();
+                    if (providerCount < 0) {
+                        serviceToProvidersMap.put(serviceName,
+                                new LazyProviderNames(bundleContext, bundleId, serviceName));
+                        continue;
+                    }
+                    List<String> providerNames = new ArrayList<String>(providerCount);
+                    for (int k = 0; k < providerCount; k++) {
+                        providerNames.add(strings[in.readInt()]);
+                    }
+                    serviceToProvidersMap.put(serviceName, providerNames);
+                }
+                result.put(bundleId, new ProvidersPerBundle(bundleId, location, lastModified, serviceToProvidersMap));
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException(file + " is corrupted");
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the content of the file by the given providers. The file is replaced only after
+     * everything has been written, so a failure never leaves a partially written file behind.
+     * Bundles having a string too long for {@link DataOutputStream#writeUTF} are left out, so their
+     * service files are read again on the next start.
+     */
+    void save(Collection<ProvidersPerBundle> allProviders) throws IOException {
+        List<ProvidersPerBundle> providersOfBundles = new ArrayList<ProvidersPerBundle>(allProviders.size());
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        // Lazy service files may be read while we are saving, so decide once which ones are saved as read.
+        Map<List<String>, List<String>> readProviderNames = new IdentityHashMap<List<String>, List<String>>();
+        for (ProvidersPerBundle providers : allProviders) {
+            if (!isWritable(providers, readProviderNames)) {
+                continue;
+            }
+            providersOfBundles.add(providers);
+            intern(strings, providers.getLocation());
+            for (Map.Entry<String, List<String>> entry : providers.getServiceToProvidersMap().entrySet()) {
+                intern(strings, entry.getKey());
+                List<String> providerNames = readProviderNames.get(entry.getValue());
+                if (providerNames != null) {
+                    for (String providerName : providerNames) {
+                        intern(strings, providerName);
+                    }
+                }
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean saved = false;
+        try {
+            write(tmp, strings, providersOfBundles, readProviderNames);
+            replace(tmp, file);
+            saved = true;
+        } finally {
+            if (!saved) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static void write(File tmp, Map<String, Integer> strings, List<ProvidersPerBundle> providersOfBundles,
+                              Map<List<String>, List<String>> readProviderNames) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            for (String s : strings.keySet()) {
+                out.writeUTF(s);
+            }
+            out.writeInt(providersOfBundles.size());
+            for (ProvidersPerBundle providers : providersOfBundles) {
+                out.writeLong(providers.getBundleId());
+                out.writeInt(strings.get(providers.getLocation()));
+                out.writeLong(providers.getLastModified());
+                out.writeInt(providers.getServiceToProvidersMap().size());
+                for (Map.Entry<String, List<String>> entry : providers.getServiceToProvidersMap().entrySet()) {
+                    out.writeInt(strings.get(entry.getKey()));
+                    List<String> providerNames = readProviderNames.get(entry.getValue());
+                    if (providerNames == null) {
+                        out.writeInt(-1);
+                        continue;
+                    }
+                    out.writeInt(providerNames.size());
+                    for (String providerName : providerNames) {
+                        out.writeInt(strings.get(providerName));
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replaces the given file by the given temporary file.
+     */
+    static void replace(File tmp, File file) throws IOException {
+        if (!tmp.renameTo(file)) {
+            // Some platforms can't rename over an existing file.
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Records in readProviderNames which service files of the bundle are saved as read.
+     *
+     * @return false if a string of the bundle is too long to be written
+     */
+    private static boolean isWritable(ProvidersPerBundle providers,
+                                      Map<List<String>, List<String>> readProviderNames) {
+        if (!isWritable(providers.getLocation())) {
+            return false;
+        }
+        Map<List<String>, List<String>> read = new IdentityHashMap<List<String>, List<String>>();
+        for (Map.Entry<String, List<String>> entry : providers.getServiceToProvidersMap().entrySet()) {
+            if (!isWritable(entry.getKey())) {
+                return false;
+            }
+            List<String> providerNames = LazyProviderNames.peek(entry.getValue());
+            if (providerNames != null) {
+                for (String providerName : providerNames) {
+                    if (!isWritable(providerName)) {
+                        return false;
+                    }
+                }
+            }
+            read.put(entry.getValue(), providerNames);
+        }
+        readProviderNames.putAll(read);
+        return true;
+    }
+
+    /**
+     * @return true if the modified UTF-8 encoding of the string, as written by writeUTF, fits in 65535 bytes
+     */
+    private static boolean isWritable(String s) {
+        if (s.length() <= 65535 / 3) {
+            return true;
+        }
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length <= 65535;
+    }
+
+    private static void intern(Map<String, Integer> strings, String s) {
+        if (!strings.containsKey(s)) {
+            strings.put(s, strings.size());
+        }
+    }
+}
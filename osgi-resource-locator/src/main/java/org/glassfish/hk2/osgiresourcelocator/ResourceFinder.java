@@ -40,7 +40,11 @@
 
 package org.glassfish.hk2.osgiresourcelocator;
 
+import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -79,9 +83,55 @@ public abstract class ResourceFinder {
         return _me.findEntries1(path);
     }
 
+    /**
+     * Reads the content of the entry which {@link #findEntry(String)} returns. Contents of recently read entries
+     * are kept in memory, so reading the same entry again does not read the bundle again, until the bundle changes.
+     *
+     * @param path path of the entry
+     * @return a read only buffer positioned at the start of the content, or null if the entry does not exist or
+     * when not running in OSGi
+     * @throws IOException if the entry can't be read
+     */
+    public static ByteBuffer readEntry(String path) throws IOException {
+        if (_me == null) return null;
+        return _me.readEntry1(path);
+    }
+
+    /**
+     * Finds entries in all bundles using {@link org.osgi.framework.Bundle#findEntries}, bundle by bundle,
+     * in ascending order of bundle id. e.g., findEntries("META-INF", "*.xml", false) returns every xml file
+     * directly under META-INF of every bundle. Since Bundle.findEntries also looks into attached fragments,
+     * an entry of a fragment is returned both for the fragment and for its host.
+     *
+     * @param dir directory in which to look for entries
+     * @param glob file name pattern as accepted by Bundle.findEntries, null means all files
+     * @param recurse whether to look into sub directories as well
+     * @return an iterator which searches the next bundle only when the entries of the previous bundle are consumed
+     */
+    public static Iterator<URL> findEntries(String dir, String glob, boolean recurse) {
+        if (_me == null) return null;
+        return _me.findEntries1(dir, glob, recurse, null);
+    }
+
+    /**
+     * Same as {@link #findEntries(String, String, boolean)}, but only searches the bundles with the given ids.
+     * Ids of bundles which are not installed are ignored.
+     */
+    public static Iterator<URL> findEntries(String dir, String glob, boolean recurse, Collection<Long> bundleIds) {
+        if (_me == null) return null;
+        if (bundleIds == null) throw new NullPointerException("bundleIds");
+        return _me.findEntries1(dir, glob, recurse, bundleIds);
+    }
+
     /*package*/
     abstract URL findEntry1(String path);
 
     /*package*/
     abstract List<URL> findEntries1(String path);
+
+    /*package*/
+    abstract ByteBuffer readEntry1(String path) throws IOException;
+
+    /*package*/
+    abstract Iterator<URL> findEntries1(String dir, String glob, boolean recurse, Collection<Long> bundleIds);
 }
@@ -42,44 +42,550 @@ package org.glassfish.hk2.osgiresourcelocator;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.BundleReference;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.glassfish.hk2.osgiresourcelocator.LocatorStatistics.Operation.*;
 
 /**
+ * Looks up entries in bundles using an index of path to the bundles containing the path. The index is filled
+ * lazily as paths are looked up, including paths which are not found in any bundle, and it is kept up to date
+ * by a bundle listener. As any of them may be in a bundle being installed or updated, paths added lazily are then
+ * dropped rather than searched in that bundle, and they are added again by the next look ups. Entries of all bundles under the prefixes listed in {@link #PREINDEX_PROP} are indexed
+ * eagerly by {@link #trackBundles()}. At most {@link #LOOKUP_INDEX_SIZE_PROP} paths are added lazily, paths
+ * looked up after that are searched in every bundle each time.
+ *
  * @author Sanjeeb.Sahoo@Sun.COM
  */
 public class ResourceFinderImpl extends ResourceFinder {
 
-    private BundleContext bundleContext;
+    private static final Logger logger = Logger.getLogger(ResourceFinderImpl.class.getPackage().getName());
+
+    /**
+     * Name of the property containing a comma separated list of path prefixes, e.g., META-INF/, under which entries
+     * of every bundle are indexed upfront. Look ups of paths under these prefixes never need to search bundles.
+     */
+    public static final String PREINDEX_PROP = "org.glassfish.hk2.osgiresourcelocator.resourceFinder.preindex";
+
+    /**
+     * Name of the property which sets the maximum total size in bytes of entry contents kept in memory by
+     * {@link ResourceFinder#readEntry(String)}. Defaults to {@link #DEFAULT_CONTENT_CACHE_SIZE}, 0 disables caching.
+     */
+    public static final String CONTENT_CACHE_SIZE_PROP =
+            "org.glassfish.hk2.osgiresourcelocator.resourceFinder.contentCacheSize";
+
+    public static final long DEFAULT_CONTENT_CACHE_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Name of the property which sets the maximum number of paths added to the index as they are looked up, as
+     * opposed to preindexed ones. Defaults to {@link #DEFAULT_LOOKUP_INDEX_SIZE}.
+     */
+    public static final String LOOKUP_INDEX_SIZE_PROP =
+            "org.glassfish.hk2.osgiresourcelocator.resourceFinder.lookupIndexSize";
+
+    public static final int DEFAULT_LOOKUP_INDEX_SIZE = 10000;
+
+    private final BundleContext bundleContext;
+
+    private BundleListener bundleTracker;
+
+    /**
+     * Map of path, without any leading '/', to the locations of that path in bundles.
+     */
+    private final ConcurrentMap<String, EntryLocations> index = new ConcurrentHashMap<String, EntryLocations>();
+
+    /**
+     * Number of paths added to the index by {@link #getLocations}, at most {@link #maxLookedUpPaths}.
+     */
+    private final AtomicInteger lookedUpPaths = new AtomicInteger();
+
+    private final int maxLookedUpPaths;
+
+    /**
+     * Prefixes for which every entry of every bundle is present in the index.
+     */
+    private volatile String[] preindexedPrefixes = new String[0];
+
+    /**
+     * Serializes updates of the index caused by bundle events.
+     */
+    private final Object indexLock = new Object();
+
+    /**
+     * Incremented on every bundle event, so that a lookup racing with a bundle event does not cache its result.
+     */
+    private final AtomicLong modCount = new AtomicLong();
+
+    private final LocatorStatistics statistics;
+
+    /**
+     * Null if caching is disabled by {@link #CONTENT_CACHE_SIZE_PROP}.
+     */
+    private final EntryContentCache contentCache;
 
     public ResourceFinderImpl() {
-        ClassLoader cl = getClass().getClassLoader();
-        if (cl instanceof BundleReference) {
-            bundleContext = BundleReference.class.cast(cl).getBundle().getBundleContext();
-        }
+        this(new LocatorStatistics());
+    }
+
+    /*package*/ ResourceFinderImpl(LocatorStatistics statistics) {
+        this(getBundleContextOfThisBundle(), statistics);
+    }
+
+    /**
+     * This constructor is used when this class is not loaded by an OSGi bundle, e.g., in benchmarks.
+     */
+    /*package*/ ResourceFinderImpl(BundleContext bundleContext, LocatorStatistics statistics) {
         if (bundleContext == null) {
             throw new RuntimeException("There is no bundle context available yet. " +
                     "Instatiate this class in STARTING or ACTIVE state only");
         }
+        this.bundleContext = bundleContext;
+        this.statistics = statistics;
+        long maxBytes = DEFAULT_CONTENT_CACHE_SIZE;
+        String cacheSize = bundleContext.getProperty(CONTENT_CACHE_SIZE_PROP);
+        if (cacheSize != null) {
+            try {
+                maxBytes = Long.parseLong(cacheSize.trim());
+            } catch (NumberFormatException e) {
+                logger.log(Level.FINE, "Ignoring " + CONTENT_CACHE_SIZE_PROP + "=" + cacheSize, e);
+            }
+        }
+        contentCache = maxBytes > 0 ? new EntryContentCache(maxBytes) : null;
+        int maxPaths = DEFAULT_LOOKUP_INDEX_SIZE;
+        String indexSize = bundleContext.getProperty(LOOKUP_INDEX_SIZE_PROP);
+        if (indexSize != null) {
+            try {
+                maxPaths = Integer.parseInt(indexSize.trim());
+            } catch (NumberFormatException e) {
+                logger.log(Level.FINE, "Ignoring " + LOOKUP_INDEX_SIZE_PROP + "=" + indexSize, e);
+            }
+        }
+        maxLookedUpPaths = maxPaths;
     }
 
-    URL findEntry1(String path) {
-        for (Bundle bundle : bundleContext.getBundles()) {
-            URL url = bundle.getEntry(path);
-            if (url != null) return url;
+    private static BundleContext getBundleContextOfThisBundle() {
+        ClassLoader cl = ResourceFinderImpl.class.getClassLoader();
+        if (cl instanceof BundleReference) {
+            return BundleReference.class.cast(cl).getBundle().getBundleContext();
         }
         return null;
     }
 
+    public void trackBundles() {
+        assert (bundleTracker == null);
+        // First register a listener and then index existing bundles
+        bundleTracker = new BundleTracker();
+        bundleContext.addBundleListener(bundleTracker);
+        String prefixes = bundleContext.getProperty(PREINDEX_PROP);
+        if (prefixes == null) {
+            return;
+        }
+        List<String> prefixList = new ArrayList<String>();
+        StringTokenizer st = new StringTokenizer(prefixes, ",");
+        while (st.hasMoreTokens()) {
+            prefixList.add(normalize(st.nextToken().trim()));
+        }
+        final LocatorEvents.IndexUpdate event = LocatorEvents.beginIndexUpdate("resources");
+        final Bundle[] bundles = bundleContext.getBundles();
+        synchronized (indexLock) {
+            modCount.incrementAndGet();
+            for (Bundle bundle : bundles) {
+                for (String prefix : prefixList) {
+                    indexEntries(bundle, prefix);
+                }
+            }
+            preindexedPrefixes = prefixList.toArray(new String[prefixList.size()]);
+        }
+        statistics.setResourceIndexSize(index.size());
+        if (event != null) {
+            event.commit(bundles.length, index.size());
+        }
+    }
+
+    URL findEntry1(String path) {
+        final long startTime = System.nanoTime();
+        final LocatorEvents.Lookup event = LocatorEvents.beginLookup("findEntry", path);
+        try {
+            URL[] urls = getLocations(path, event).getUrls();
+            return urls.length > 0 ? urls[0] : null;
+        } finally {
+            statistics.record(FIND_ENTRY, startTime);
+            if (event != null) {
+                event.commit();
+            }
+        }
+    }
+
     List<URL> findEntries1(String path) {
-        List<URL> urls = new ArrayList<URL>();
+        final long startTime = System.nanoTime();
+        final LocatorEvents.Lookup event = LocatorEvents.beginLookup("findEntries", path);
+        try {
+            return new ArrayList<URL>(Arrays.asList(getLocations(path, event).getUrls()));
+        } finally {
+            statistics.record(FIND_ENTRIES, startTime);
+            if (event != null) {
+                event.commit();
+            }
+        }
+    }
+
+    ByteBuffer readEntry1(String path) throws IOException {
+        final long startTime = System.nanoTime();
+        final LocatorEvents.Lookup event = LocatorEvents.beginLookup("readEntry", path);
+        try {
+            path = normalize(path);
+            if (contentCache != null) {
+                // The content is only valid if its bundle still comes first for the path. A bundle with a lower
+                // id may have been installed or updated to contain the path since it was read.
+                EntryLocations indexed = index.get(path);
+                ByteBuffer content = indexed != null && indexed.getBundleIds().length > 0
+                        ? contentCache.get(path, indexed.getBundleIds()[0]) : null;
+                statistics.resourceContentCacheHit(content != null);
+                if (content != null) {
+                    return content;
+                }
+            }
+            final long stamp = modCount.get();
+            EntryLocations locations = getLocations(path, event);
+            if (locations.getUrls().length == 0) {
+                return null;
+            }
+            if (contentCache != null) {
+                // The path may just have been dropped from the index by a bundle event, see addBundle.
+                ByteBuffer content = contentCache.get(path, locations.getBundleIds()[0]);
+                if (content != null) {
+                    return content;
+                }
+            }
+            ByteBuffer content = ByteBuffer.wrap(read(locations.getUrls()[0])).asReadOnlyBuffer();
+            if (contentCache != null) {
+                EntryContentCache.Entry entry = contentCache.put(path, locations.getBundleIds()[0], content);
+                if (entry != null && modCount.get() != stamp) {
+                    // A bundle has changed in the mean time, so what we read may be stale.
+                    contentCache.remove(path, entry);
+                }
+                statistics.setResourceContentCacheSize(contentCache.size());
+            }
+            return content.duplicate();
+        } finally {
+            statistics.record(READ_ENTRY, startTime);
+            if (event != null) {
+                event.commit();
+            }
+        }
+    }
+
+    private static byte[] read(URL url) throws IOException {
+        InputStream is = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    Iterator<URL> findEntries1(String dir, String glob, boolean recurse, Collection<Long> bundleIds) {
+        Iterator<Bundle> bundles;
+        if (bundleIds == null) {
+            bundles = Arrays.asList(bundleContext.getBundles()).iterator();
+        } else {
+            List<Long> sortedIds = new ArrayList<Long>(bundleIds);
+            Collections.sort(sortedIds);
+            List<Bundle> bundleList = new ArrayList<Bundle>(sortedIds.size());
+            for (Long bundleId : sortedIds) {
+                Bundle bundle = bundleContext.getBundle(bundleId);
+                if (bundle != null) bundleList.add(bundle);
+            }
+            bundles = bundleList.iterator();
+        }
+        return new BundleEntriesIterator(bundles, dir, glob != null ? glob : "*", recurse);
+    }
+
+    /**
+     * @param event flight recorder event of the look up, null if there is none
+     */
+    private EntryLocations getLocations(String path, LocatorEvents.Lookup event) {
+        path = normalize(path);
+        EntryLocations locations = index.get(path);
+        if (locations != null) {
+            statistics.resourceIndexHit(true);
+            if (event != null) {
+                event.setCandidates(locations.getUrls().length);
+            }
+            return locations;
+        }
+        if (isPreindexed(path)) {
+            statistics.resourceIndexHit(true);
+            return EntryLocations.NOT_FOUND;
+        }
+        statistics.resourceIndexHit(false);
+        final long stamp = modCount.get();
+        locations = EntryLocations.NOT_FOUND;
         for (Bundle bundle : bundleContext.getBundles()) {
             URL url = bundle.getEntry(path);
-            if (url != null) urls.add(url);
+            if (url != null) locations = locations.with(bundle.getBundleId(), url);
+        }
+        if (event != null) {
+            event.setCandidates(locations.getUrls().length);
+        }
+        if (lookedUpPaths.incrementAndGet() > maxLookedUpPaths) {
+            lookedUpPaths.decrementAndGet();
+            return locations; // the index is full
+        }
+        if (index.putIfAbsent(path, locations) != null) {
+            lookedUpPaths.decrementAndGet(); // added by someone else
+        } else if (modCount.get() != stamp && index.remove(path, locations)) {
+            // A bundle has changed in the mean time, so what we found may no longer be true.
+            lookedUpPaths.decrementAndGet();
+        }
+        statistics.setResourceIndexSize(index.size());
+        return locations;
+    }
+
+    private boolean isPreindexed(String path) {
+        for (String prefix : preindexedPrefixes) {
+            if (path.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds every entry of the bundle under the given prefix to the index. Caller must hold {@link #indexLock}.
+     */
+    private void indexEntries(Bundle bundle, String prefix) {
+        Enumeration<String> paths = bundle.getEntryPaths(prefix);
+        if (paths == null) {
+            return;
+        }
+        while (paths.hasMoreElements()) {
+            String path = paths.nextElement();
+            if (path.endsWith("/")) {
+                indexEntries(bundle, path);
+            } else {
+                URL url = bundle.getEntry(path);
+                if (url != null) {
+                    EntryLocations locations = index.get(path);
+                    index.put(path, (locations != null ? locations : EntryLocations.NOT_FOUND)
+                            .with(bundle.getBundleId(), url));
+                }
+            }
+        }
+    }
+
+    private void removeBundle(long bundleId) {
+        for (Map.Entry<String, EntryLocations> entry : index.entrySet()) {
+            EntryLocations locations = entry.getValue();
+            EntryLocations newLocations = locations.without(bundleId);
+            if (newLocations != locations) {
+                index.put(entry.getKey(), newLocations);
+            }
+        }
+    }
+
+    /**
+     * Drops the paths added by {@link #getLocations} instead of searching them in the bundle, which would take up to
+     * {@link #maxLookedUpPaths} calls to {@link Bundle#getEntry} on the thread delivering the event.
+     * Caller must hold {@link #indexLock} and increment {@link #modCount}.
+     */
+    private void addBundle(Bundle bundle) {
+        for (Map.Entry<String, EntryLocations> entry : index.entrySet()) {
+            if (!isPreindexed(entry.getKey()) && index.remove(entry.getKey(), entry.getValue())) {
+                lookedUpPaths.decrementAndGet();
+            }
+        }
+        for (String prefix : preindexedPrefixes) {
+            indexEntries(bundle, prefix);
+        }
+    }
+
+    private void invalidateContents(long bundleId) {
+        if (contentCache != null) {
+            contentCache.invalidate(bundleId);
+            statistics.setResourceContentCacheSize(contentCache.size());
+        }
+    }
+
+    private static String normalize(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    private class BundleTracker implements BundleListener {
+        public void bundleChanged(BundleEvent event) {
+            final long startTime = System.nanoTime();
+            final int type = event.getType();
+            final LocatorEvents.IndexUpdate indexEvent =
+                    type == BundleEvent.INSTALLED || type == BundleEvent.UPDATED || type == BundleEvent.UNINSTALLED
+                            ? LocatorEvents.beginIndexUpdate("resources") : null;
+            try {
+                bundleChanged0(event);
+            } finally {
+                statistics.setResourceIndexSize(index.size());
+                statistics.record(BUNDLE_EVENT, startTime);
+                if (indexEvent != null) {
+                    indexEvent.commit(1, index.size());
+                }
+            }
+        }
+
+        private void bundleChanged0(BundleEvent event) {
+            Bundle bundle = event.getBundle();
+            switch (event.getType()) {
+                case BundleEvent.INSTALLED:
+                    synchronized (indexLock) {
+                        modCount.incrementAndGet();
+                        addBundle(bundle);
+                    }
+                    break;
+                case BundleEvent.UNINSTALLED:
+                    synchronized (indexLock) {
+                        modCount.incrementAndGet();
+                        removeBundle(bundle.getBundleId());
+                    }
+                    invalidateContents(bundle.getBundleId());
+                    break;
+                case BundleEvent.UPDATED:
+                    synchronized (indexLock) {
+                        modCount.incrementAndGet();
+                        removeBundle(bundle.getBundleId());
+                        addBundle(bundle);
+                    }
+                    invalidateContents(bundle.getBundleId());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Iterates over entries of a sequence of bundles, calling {@link Bundle#findEntries} on the next bundle
+     * only when the entries of the previous one have been consumed.
+     */
+    private static class BundleEntriesIterator implements Iterator<URL> {
+        private final Iterator<Bundle> bundles;
+        private final String dir;
+        private final String glob;
+        private final boolean recurse;
+        private Enumeration<URL> entries;
+
+        BundleEntriesIterator(Iterator<Bundle> bundles, String dir, String glob, boolean recurse) {
+            this.bundles = bundles;
+            this.dir = dir;
+            this.glob = glob;
+            this.recurse = recurse;
+        }
+
+        public boolean hasNext() {
+            while (entries == null || !entries.hasMoreElements()) {
+                if (!bundles.hasNext()) {
+                    return false;
+                }
+                Bundle bundle = bundles.next();
+                try {
+                    entries = bundle.findEntries(dir, glob, recurse);
+                } catch (IllegalStateException e) {
+                    // bundle has been uninstalled in the mean time
+                    entries = null;
+                }
+            }
+            return true;
+        }
+
+        public URL next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return entries.nextElement();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Immutable list of bundles containing a particular path, along with the URL of the entry in each of them,
+     * sorted in ascending order of bundle id. An empty list is used to remember that the path does not exist.
+     */
+    private static class EntryLocations {
+        static final EntryLocations NOT_FOUND = new EntryLocations(new long[0], new URL[0]);
+
+        private final long[] bundleIds;
+        private final URL[] urls;
+
+        private EntryLocations(long[] bundleIds, URL[] urls) {
+            this.bundleIds = bundleIds;
+            this.urls = urls;
+        }
+
+        URL[] getUrls() {
+            return urls;
+        }
+
+        long[] getBundleIds() {
+            return bundleIds;
+        }
+
+        EntryLocations with(long bundleId, URL url) {
+            EntryLocations locations = without(bundleId);
+            int n = locations.bundleIds.length;
+            int idx = 0;
+            while (idx < n && locations.bundleIds[idx] < bundleId) {
+                idx++;
+            }
+            long[] newBundleIds = new long[n + 1];
+            URL[] newUrls = new URL[n + 1];
+            System.arraycopy(locations.bundleIds, 0, newBundleIds, 0, idx);
+            System.arraycopy(locations.urls, 0, newUrls, 0, idx);
+            newBundleIds[idx] = bundleId;
+            newUrls[idx] = url;
+            System.arraycopy(locations.bundleIds, idx, newBundleIds, idx + 1, n - idx);
+            System.arraycopy(locations.urls, idx, newUrls, idx + 1, n - idx);
+            return new EntryLocations(newBundleIds, newUrls);
+        }
+
+        EntryLocations without(long bundleId) {
+            for (int idx = 0; idx < bundleIds.length; idx++) {
+                if (bundleIds[idx] == bundleId) {
+                    int n = bundleIds.length;
+                    if (n == 1) return NOT_FOUND;
+                    long[] newBundleIds = new long[n - 1];
+                    URL[] newUrls = new URL[n - 1];
+                    System.arraycopy(bundleIds, 0, newBundleIds, 0, idx);
+                    System.arraycopy(urls, 0, newUrls, 0, idx);
+                    System.arraycopy(bundleIds, idx + 1, newBundleIds, idx, n - idx - 1);
+                    System.arraycopy(urls, idx + 1, newUrls, idx, n - idx - 1);
+                    return new EntryLocations(newBundleIds, newUrls);
+                }
+            }
+            return this;
         }
-        return urls;
     }
 }
@@ -40,6 +40,11 @@
 
 package org.glassfish.hk2.osgiresourcelocator;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 /**
  * This is a gateway to OSGi bundles as far as META-INF/services files are concerned.
  * Since META-INF/services files are not exportable, clients relying on Java SPI mechanism
@@ -79,6 +84,58 @@ public abstract class ServiceLoader {
         T make(Class providerClass, Class<T> serviceClass) throws Exception;
     }
 
+    /**
+     * Decides whether provider instances returned by look ups are cached.
+     * A cached instance is kept per service class and provider class until the bundle of either class is stopped,
+     * updated, uninstalled or refreshed, so that no stale class loader is kept alive.
+     */
+    public enum InstanceScope {
+        /**
+         * A new instance is made by every look up. This is what look ups without a scope do.
+         */
+        NEW,
+
+        /**
+         * The same instance is returned by every look up.
+         */
+        SINGLETON,
+
+        /**
+         * The same instance is returned as long as it is reachable from elsewhere, a new one is made after
+         * it has been garbage collected.
+         */
+        WEAK
+    }
+
+    /**
+     * Receives changes to the provider classes of a service, see {@link #track(Class, ProviderListener)}.
+     * Calls for a particular subscription are never concurrent. They are made by the thread which applies
+     * bundle changes, so they should return quickly.
+     */
+    public interface ProviderListener<T> {
+        /**
+         * Called once with the provider classes found when tracking starts, which may be none, and then
+         * whenever provider classes become available.
+         */
+        void providersAdded(Class<T> serviceClass, List<Class> providerClasses);
+
+        /**
+         * Called when provider classes are no longer available, because their bundle has been updated,
+         * uninstalled or refreshed. Classes are removed before any replacement gets added.
+         */
+        void providersRemoved(Class<T> serviceClass, List<Class> providerClasses);
+    }
+
+    /**
+     * Returned by {@link #track(Class, ProviderListener)}.
+     */
+    public interface Subscription {
+        /**
+         * Stops delivering changes to the listener. Does nothing if already cancelled.
+         */
+        void cancel();
+    }
+
     /**
      * Calling this method is equivalent to calling {@link #lookupProviderInstances(Class, ProviderFactory)}
      * with a null factory object.
@@ -94,11 +151,64 @@ public abstract class ServiceLoader {
      * @param factory ProviderFactory used to instantiate provider instance from a provider class. If null is supplied,
      * it calls Class.newInstance to obtain a provider instance from provider class.
      * @param <T>
-     * @return provider instances implementing the given service class. 
+     * @return provider instances implementing the given service class. Providers are loaded and instantiated
+     * lazily as the returned iterable is iterated over, so callers who stop at the first usable provider
+     * don't pay for the rest.
      */
     public static <T> Iterable<? extends T> lookupProviderInstances(Class<T> serviceClass, ProviderFactory<T> factory) {
+        return lookupProviderInstances(serviceClass, factory, InstanceScope.NEW);
+    }
+
+    /**
+     * Same as {@link #lookupProviderInstances(Class, ProviderFactory)}, except that provider instances can be reused
+     * across look ups. This is meant for stateless providers, like parser factories, which are expensive to create.
+     * Cached instances are shared by all callers looking up the same service class, whatever factory they use.
+     *
+     * @param serviceClass type of service requested
+     * @param factory ProviderFactory used to instantiate provider instance from a provider class. If null is supplied,
+     * it calls Class.newInstance to obtain a provider instance from provider class.
+     * @param scope decides whether and how provider instances are cached
+     * @param <T>
+     * @return provider instances implementing the given service class
+     */
+    public static <T> Iterable<? extends T> lookupProviderInstances(Class<T> serviceClass, ProviderFactory<T> factory,
+                                                                  InstanceScope scope) {
         if (_me == null) return null;
-        return _me.lookupProviderInstances1(serviceClass, factory);
+        return _me.lookupProviderInstances1(serviceClass, factory, scope);
+    }
+
+    /**
+     * Calling this method is equivalent to calling {@link #lookupFirstProviderInstance(Class, ProviderFactory)}
+     * with a null factory object.
+     *
+     * @see #lookupFirstProviderInstance(Class, org.glassfish.hk2.osgiresourcelocator.ServiceLoader.ProviderFactory)
+     */
+    public static <T> T lookupFirstProviderInstance(Class<T> serviceClass) {
+        return lookupFirstProviderInstance(serviceClass, null);
+    }
+
+    /**
+     * Returns the first provider instance that {@link #lookupProviderInstances(Class, ProviderFactory)} would return.
+     * No provider after that one is loaded or instantiated.
+     *
+     * @param serviceClass type of service requested
+     * @param factory ProviderFactory used to instantiate provider instance from a provider class. If null is supplied,
+     * it calls Class.newInstance to obtain a provider instance from provider class.
+     * @param <T>
+     * @return the first compatible provider instance that could be successfully created, null if there is none.
+     */
+    public static <T> T lookupFirstProviderInstance(Class<T> serviceClass, ProviderFactory<T> factory) {
+        return lookupFirstProviderInstance(serviceClass, factory, InstanceScope.NEW);
+    }
+
+    /**
+     * Same as {@link #lookupFirstProviderInstance(Class, ProviderFactory)}, except that the provider instance can be
+     * reused across look ups, see {@link #lookupProviderInstances(Class, ProviderFactory, InstanceScope)}.
+     */
+    public static <T> T lookupFirstProviderInstance(Class<T> serviceClass, ProviderFactory<T> factory,
+                                                    InstanceScope scope) {
+        if (_me == null) return null;
+        return _me.lookupFirstProviderInstance1(serviceClass, factory, scope);
     }
 
     /**
@@ -132,7 +242,90 @@ public abstract class ServiceLoader {
         return _me.lookupProviderClasses1(serviceClass);
     }
 
-    /*package*/ abstract <T> Iterable<? extends T> lookupProviderInstances1(Class<T> serviceType, ProviderFactory<T> factory);
+    /**
+     * Looks up provider classes of several services, as {@link #lookupProviderClasses(Class)} does for each of them,
+     * but against the same state of the index, so the result is consistent even if bundles change in the mean time.
+     * A provider class listed for several services of a bundle is loaded only once. This is meant for callers
+     * looking up many services in a row, e.g., while bootstrapping.
+     *
+     * @param serviceClasses types of services requested
+     * @return provider classes by service class, in the order of the given collection, or null when not running
+     * in OSGi.
+     */
+    public static Map<Class<?>, Iterable<Class>> lookupProviderClasses(Collection<? extends Class<?>> serviceClasses) {
+        if (_me == null) return null;
+        return _me.lookupProviderClasses1(serviceClasses);
+    }
+
+    /**
+     * Returns descriptors of the providers which {@link #lookupProviderClasses(Class)} considers, in the same order,
+     * without loading any class. Provider classes are only loaded by {@link ProviderDescriptor#loadProviderClass()},
+     * so callers can sort and pick providers first. The class file of every provider is read only once per
+     * version of its bundle.
+     *
+     * @param serviceClass type of service requested
+     * @param <T>
+     * @return descriptors of providers listed in META-INF/services/serviceClass.getName() in OSGi bundles,
+     * or null when not running in OSGi.
+     */
+    public static <T> List<ProviderDescriptor> lookupProviderDescriptors(Class<T> serviceClass) {
+        if (_me == null) return null;
+        return _me.lookupProviderDescriptors1(serviceClass);
+    }
+
+    /**
+     * Delivers the provider classes of the given service, as returned by {@link #lookupProviderClasses(Class)},
+     * to the given listener, followed by every change to them, until the returned subscription is cancelled.
+     * This allows keeping a ready to use list of providers instead of looking them up repeatedly.
+     *
+     * @param serviceClass type of service to track
+     * @param listener receives the initial providers, which are delivered before this method returns, and later changes
+     * @param <T>
+     * @return a subscription which must be cancelled when the listener is no longer needed, null when not running in
+     * OSGi, in which case the listener is not called.
+     */
+    public static <T> Subscription track(Class<T> serviceClass, ProviderListener<T> listener) {
+        if (_me == null) return null;
+        return _me.track1(serviceClass, listener);
+    }
+
+    /**
+     * Provider classes which can't be loaded are reported once through java.util.logging and then skipped by
+     * look ups until their bundle is updated or refreshed. This method returns what is currently being skipped.
+     *
+     * @return provider classes which could not be loaded, or null when not running in OSGi.
+     */
+    public static List<ProviderLoadFailure> getProviderLoadFailures() {
+        if (_me == null) return null;
+        return _me.getProviderLoadFailures1();
+    }
+
+    /**
+     * Bundle changes are applied in the background, so providers of a bundle which has just been installed
+     * or updated may not be returned yet by the lookup methods. Callers who need to see them should call this method
+     * first. It waits until changes made to bundles before the call are visible, including changes whose bundle
+     * events have not been delivered yet.
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return false if the timeout elapsed before all changes became visible, true otherwise, including when
+     * not running in OSGi.
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public static boolean awaitConsistency(long timeout, TimeUnit unit) throws InterruptedException {
+        if (_me == null) return true;
+        return _me.awaitConsistency1(timeout, unit);
+    }
+
+    /*package*/ abstract boolean awaitConsistency1(long timeout, TimeUnit unit) throws InterruptedException;
+    /*package*/ abstract <T> Iterable<? extends T> lookupProviderInstances1(Class<T> serviceType, ProviderFactory<T> factory,
+                                                                          InstanceScope scope);
+    /*package*/ abstract <T> T lookupFirstProviderInstance1(Class<T> serviceType, ProviderFactory<T> factory,
+                                                          InstanceScope scope);
     /*package*/ abstract <T> Iterable<Class> lookupProviderClasses1(Class<T> serviceType);
+    /*package*/ abstract Map<Class<?>, Iterable<Class>> lookupProviderClasses1(Collection<? extends Class<?>> serviceTypes);
+    /*package*/ abstract <T> List<ProviderDescriptor> lookupProviderDescriptors1(Class<T> serviceType);
+    /*package*/ abstract List<ProviderLoadFailure> getProviderLoadFailures1();
+    /*package*/ abstract <T> Subscription track1(Class<T> serviceType, ProviderListener<T> listener);
 
 }
@@ -42,44 +42,278 @@ package org.glassfish.hk2.osgiresourcelocator;
 
 import org.osgi.framework.*;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.glassfish.hk2.osgiresourcelocator.LocatorStatistics.Operation.*;
 
 /**
  * @author Sanjeeb.Sahoo@Sun.COM
  */
 public final class ServiceLoaderImpl extends org.glassfish.hk2.osgiresourcelocator.ServiceLoader {
 
-    private ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    /**
+     * Name of the property which decides how existing bundles are scanned by {@link #trackBundles()}.
+     * Allowed values are {@link #SCAN_MODE_SERIAL} (default) and {@link #SCAN_MODE_PARALLEL}.
+     */
+    public static final String SCAN_MODE_PROP = "org.glassfish.hk2.osgiresourcelocator.scanMode";
+
+    /**
+     * Name of the property which sets the number of threads used in {@link #SCAN_MODE_PARALLEL} mode.
+     * Defaults to the number of available processors.
+     */
+    public static final String SCAN_THREADS_PROP = "org.glassfish.hk2.osgiresourcelocator.scanThreads";
+
+    public static final String SCAN_MODE_SERIAL = "serial";
+    public static final String SCAN_MODE_PARALLEL = "parallel";
+
+    /**
+     * Name of the property which, when set to false, disables saving the providers of all bundles in the data area
+     * of this bundle. When enabled (default), service files of bundles which have not changed since the last run
+     * are not read again.
+     */
+    public static final String PERSISTENT_INDEX_PROP = "org.glassfish.hk2.osgiresourcelocator.persistentIndex";
+
+    private static final String PERSISTENT_INDEX_FILE = "providers.idx";
+
+    /**
+     * Name of the property which decides when service files are read. Allowed values are {@link #PARSE_MODE_EAGER}
+     * (default), where all service files of a bundle are read when the bundle is indexed, and {@link #PARSE_MODE_LAZY},
+     * where only their names are recorded then and a service file is read the first time its service is looked up.
+     */
+    public static final String PARSE_MODE_PROP = "org.glassfish.hk2.osgiresourcelocator.parseMode";
+
+    public static final String PARSE_MODE_EAGER = "eager";
+    public static final String PARSE_MODE_LAZY = "lazy";
+
+    /**
+     * Name of the property which decides how to check that a provider class sees the same service class as the caller.
+     * Allowed values are {@link #COMPATIBILITY_CHECK_CLASS_LOADER} (default), where the service class is loaded
+     * through the class loader of every provider class, and {@link #COMPATIBILITY_CHECK_WIRING}, where the wiring
+     * of provider bundles is checked first, so that bundles wired to another exporter of the service package are
+     * skipped without loading any class. The class loader is still used when the wiring is not conclusive.
+     */
+    public static final String COMPATIBILITY_CHECK_PROP = "org.glassfish.hk2.osgiresourcelocator.compatibilityCheck";
+
+    public static final String COMPATIBILITY_CHECK_CLASS_LOADER = "classloader";
+    public static final String COMPATIBILITY_CHECK_WIRING = "wiring";
+
+    /**
+     * Name of the property listing, separated by commas, names of services whose provider classes are looked up
+     * by {@link #prewarm()} in the background, so that the first look up does not have to.
+     */
+    public static final String PREWARM_PROP = "org.glassfish.hk2.osgiresourcelocator.prewarm";
+
+    /**
+     * Name of the property which, when set to true, makes this class remember the services looked up during a run
+     * and {@link #prewarm()} them during the next one, in addition to those listed by {@link #PREWARM_PROP}.
+     */
+    public static final String PREWARM_LEARNED_PROP = "org.glassfish.hk2.osgiresourcelocator.prewarm.learned";
+
+    private static final String PREWARM_FILE = "prewarm.lst";
+
+    private static final String SERVICE_LOCATION = "META-INF/services";
+
+    private static final Logger logger = Logger.getLogger(ServiceLoaderImpl.class.getPackage().getName());
+
+    /**
+     * Name of the property which decides where bundle events are applied to the index.
+     * Allowed values are {@link #EVENT_MODE_ASYNC} (default), where service files are read by a background thread
+     * and events for the same bundle are coalesced, and {@link #EVENT_MODE_SYNC}, where they are read by the
+     * thread delivering the event. Use {@link ServiceLoader#awaitConsistency} to see the effect of a
+     * bundle change in asynchronous mode.
+     */
+    public static final String EVENT_MODE_PROP = "org.glassfish.hk2.osgiresourcelocator.eventMode";
+
+    public static final String EVENT_MODE_ASYNC = "async";
+    public static final String EVENT_MODE_SYNC = "sync";
+
+    /**
+     * Name of the property which, when set to true, registers every provider as an OSGi service under the name of
+     * its service, so that it can be found in the service registry too. The provider class is only loaded when
+     * the service is first obtained by a bundle. Providers must be assignable to the service class for that to
+     * succeed. In {@link #PARSE_MODE_LAZY} mode, this makes service files be read when bundles are indexed.
+     */
+    public static final String PUBLISH_SERVICES_PROP = "org.glassfish.hk2.osgiresourcelocator.publishServices";
+
+    /**
+     * Service property holding the name of the service, see {@link #PUBLISH_SERVICES_PROP}.
+     */
+    public static final String SERVICE_NAME_PROPERTY = "org.glassfish.hk2.osgiresourcelocator.service";
+
+    /**
+     * Service property holding the name of the provider class, see {@link #PUBLISH_SERVICES_PROP}.
+     */
+    public static final String PROVIDER_CLASS_PROPERTY = "org.glassfish.hk2.osgiresourcelocator.provider";
+
+    /**
+     * Service property holding the id of the bundle providing the service as a Long, see {@link #PUBLISH_SERVICES_PROP}.
+     */
+    public static final String PROVIDER_BUNDLE_ID_PROPERTY = "org.glassfish.hk2.osgiresourcelocator.bundle.id";
+
+    /**
+     * Serializes writers of {@link #providersIndex}. Readers never take this lock.
+     */
+    private final Object indexLock = new Object();
     private BundleListener bundleTracker;
-    private BundleContext bundleContext;
-    private ProvidersList providersList = new ProvidersList();
+    private final BundleContext bundleContext;
+
+    /**
+     * Current snapshot of service name to providers. It is never mutated, only replaced by writers
+     * holding {@link #indexLock}, so readers can use whatever snapshot they see without any locking.
+     */
+    private volatile ProvidersIndex providersIndex = ProvidersIndex.EMPTY;
+
+    /**
+     * Ids of bundles whose events have been handled while {@link #trackBundles()} scans existing bundles.
+     * Results of the scan for such bundles are stale and must not be published. It is null when no scan is
+     * in progress. Guarded by {@link #indexLock}.
+     */
+    private Set<Long> bundlesChangedDuringScan;
+
+    private final ProviderClassesCache providerClassesCache = new ProviderClassesCache();
+
+    private final ProviderInstancesCache providerInstancesCache = new ProviderInstancesCache();
+
+    private final ProviderLoadFailures loadFailures = new ProviderLoadFailures();
+
+    private final List<ProviderSubscription> subscriptions = new CopyOnWriteArrayList<ProviderSubscription>();
+
+    /**
+     * Names of services looked up so far, null unless {@link #PREWARM_LEARNED_PROP} is set.
+     */
+    private final Set<String> lookedUpServices;
+
+    private volatile Thread prewarmThread;
+
+    /**
+     * Null unless {@link #PUBLISH_SERVICES_PROP} is set.
+     */
+    private final ProviderServicePublisher servicePublisher;
 
-//    /**
-//     * Map of service type to bundles providing the service
-//     */
-//    private Map<String, List<ServiceProviders>> serviceToProvidersMap = new HashMap<String, List<ServiceProviders>>();
+    /**
+     * Bundles whose changes have not been applied to {@link #providersIndex} yet, by bundle id.
+     * A null value stands for a bundle which is no longer installed. Guarded by {@link #pendingLock}.
+     */
+    private final Map<Long, Bundle> pendingBundles = new LinkedHashMap<Long, Bundle>();
+
+    private final Object pendingLock = new Object();
+
+    /**
+     * True while a task applying {@link #pendingBundles} is scheduled or running. Guarded by {@link #pendingLock}.
+     */
+    private boolean updating;
+
+    /**
+     * Number of times bundles have been added to {@link #pendingBundles} and the value of that number when
+     * the last applied batch was taken. Both are guarded by {@link #pendingLock}.
+     */
+    private long scheduledCount;
+    private long appliedCount;
+
+    /**
+     * Single thread applying bundle changes in asynchronous mode. The thread goes away when there is nothing to do.
+     */
+    private final ThreadPoolExecutor indexUpdater;
+
+    private final LocatorStatistics statistics;
+
+    private final boolean lazyParsing;
+
+    /**
+     * True if {@link #EVENT_MODE_SYNC} is used.
+     */
+    private final boolean syncEvents;
+
+    /**
+     * True if the legacy debug property is set, which logs {@link #debug(String)} messages at INFO.
+     */
+    private final boolean debug;
+
+    /**
+     * Null unless {@link #COMPATIBILITY_CHECK_WIRING} is used.
+     */
+    private final WiringCompatibilityChecker wiringChecker;
 
     public ServiceLoaderImpl() {
-        ClassLoader cl = getClass().getClassLoader();
-        if (cl instanceof BundleReference) {
-            bundleContext = getBundleContextSecured(BundleReference.class.cast(cl).getBundle());
-        }
+        this(new LocatorStatistics());
+    }
+
+    /*package*/ ServiceLoaderImpl(LocatorStatistics statistics) {
+        this(getBundleContextOfThisBundle(), statistics);
+    }
+
+    /**
+     * This constructor is used when this class is not loaded by an OSGi bundle, e.g., in benchmarks.
+     */
+    /*package*/ ServiceLoaderImpl(BundleContext bundleContext, LocatorStatistics statistics) {
         if (bundleContext == null) {
             throw new RuntimeException("There is no bundle context available yet. " +
                     "Instatiate this class in STARTING or ACTIVE state only");
         }
+        this.bundleContext = bundleContext;
+        this.statistics = statistics;
+        lazyParsing = PARSE_MODE_LAZY.equals(bundleContext.getProperty(PARSE_MODE_PROP));
+        syncEvents = EVENT_MODE_SYNC.equals(bundleContext.getProperty(EVENT_MODE_PROP));
+        debug = Boolean.valueOf(bundleContext.getProperty("org.glassfish.hk2.osgiresourcelocator.debug"));
+        wiringChecker = COMPATIBILITY_CHECK_WIRING.equals(bundleContext.getProperty(COMPATIBILITY_CHECK_PROP))
+                ? new WiringCompatibilityChecker() : null;
+        lookedUpServices = Boolean.valueOf(bundleContext.getProperty(PREWARM_LEARNED_PROP))
+                ? Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()) : null;
+        servicePublisher = Boolean.valueOf(bundleContext.getProperty(PUBLISH_SERVICES_PROP))
+                ? new ProviderServicePublisher(bundleContext, loadFailures) : null;
+        indexUpdater = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "osgiresourcelocator-index-updater");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        indexUpdater.allowCoreThreadTimeOut(true);
+    }
+
+    private static BundleContext getBundleContextOfThisBundle() {
+        ClassLoader cl = ServiceLoaderImpl.class.getClassLoader();
+        if (cl instanceof BundleReference) {
+            return getBundleContextSecured(BundleReference.class.cast(cl).getBundle());
+        }
+        return null;
     }
 
-    private BundleContext getBundleContextSecured(final Bundle bundle) {
+    private static BundleContext getBundleContextSecured(final Bundle bundle) {
         if (System.getSecurityManager() != null) {
             return AccessController.doPrivileged(new PrivilegedAction<BundleContext>() {
                 public BundleContext run() {
@@ -99,272 +333,1755 @@ public final class ServiceLoaderImpl extends org.glassfish.hk2.osgiresourcelocat
          * That would be a problem since BundleTracker receives callbacks from other threads.
          */
 
+        final long startTime = System.nanoTime();
+        final LocatorEvents.IndexUpdate indexEvent = LocatorEvents.beginIndexUpdate("providers");
         // First register a listener and then iterate over existing bundles
+        synchronized (indexLock) {
+            bundlesChangedDuringScan = new HashSet<Long>();
+        }
         bundleTracker = new BundleTracker();
         bundleContext.addBundleListener(bundleTracker);
+        final Map<Long, ProvidersPerBundle> stored = loadIndex();
+        final List<ProvidersPerBundle> scanned = new ArrayList<ProvidersPerBundle>();
+        final List<Bundle> bundlesToParse = new ArrayList<Bundle>();
         for (Bundle bundle : bundleContext.getBundles()) {
-            addProviders(bundle);
+            ProvidersPerBundle providers = stored.get(bundle.getBundleId());
+            if (providers != null && providers.isUpToDate(bundle)) {
+                scanned.add(providers);
+            } else {
+                bundlesToParse.add(bundle);
+            }
         }
-    }
-
-    /*package*/ <T> Iterable<? extends T> lookupProviderInstances1(Class<T> serviceClass, ProviderFactory<T> factory) {
-        if (factory == null) {
-            factory = new DefaultFactory<T>();
+        if (SCAN_MODE_PARALLEL.equals(bundleContext.getProperty(SCAN_MODE_PROP))) {
+            scanned.addAll(scanInParallel(bundlesToParse));
+        } else {
+            for (Bundle bundle : bundlesToParse) {
+                scanned.add(parseProviders(bundle));
+            }
         }
-        List<T> providers = new ArrayList<T>();
-        for (Class c : lookupProviderClasses1(serviceClass)) {
-            try {
-                final T providerInstance = factory.make(c, serviceClass);
-                if (providerInstance != null) {
-                    providers.add(providerInstance);
-                } else {
-                    debug(factory + " returned null provider instance!!!");
+        // Publish everything in one step, except bundles which have changed in the mean time,
+        // because the BundleTracker has already published more recent information about them.
+        synchronized (indexLock) {
+            Iterator<ProvidersPerBundle> iterator = scanned.iterator();
+            while (iterator.hasNext()) {
+                if (bundlesChangedDuringScan.contains(iterator.next().getBundleId())) {
+                    iterator.remove();
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
+            bundlesChangedDuringScan = null;
+            publish(providersIndex.withProviders(scanned));
         }
-        return providers;
+        if (indexEvent != null) {
+            indexEvent.commit(scanned.size(), providersIndex.getProviderCount());
+        }
+        publishServices();
+        statistics.setInitialScanTime(System.nanoTime() - startTime);
+        saveIndex();
     }
 
-    /*package*/ <T> Iterable<Class> lookupProviderClasses1(Class<T> serviceClass) {
-        List<Class> providerClasses = new ArrayList<Class>();
-        rwLock.readLock().lock();
-        try {
-            final String serviceName = serviceClass.getName();
-            for (ProvidersPerBundle providersPerBundle : providersList.getAllProviders()) {
-                final Bundle bundle = bundleContext.getBundle(providersPerBundle.getBundleId());
-                if (bundle == null) {
-                    // bundle may have been uninstalled
-                    continue;
-                }
-                final List<String> providerNames = providersPerBundle.getServiceToProvidersMap().get(serviceName);
-                if (providerNames == null) {
-                    continue;
-                }
-                for (String providerName : providerNames) {
-                    try {
-                        final Class providerClass = loadClassSecured(bundle, providerName);
-                        if (isCompatible(providerClass, serviceClass)) {
-                            providerClasses.add(providerClass);
-                        }
-                    } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                }
+    /**
+     * @return providers saved by {@link #saveIndex()} by bundle id, empty map if there is none
+     */
+    private Map<Long, ProvidersPerBundle> loadIndex() {
+        ProvidersIndexStore store = getIndexStore();
+        if (store != null) {
+            try {
+                return store.load();
+            } catch (IOException e) {
+                debug("Ignoring saved providers index", e);
             }
-            return providerClasses;
-        } finally {
-            rwLock.readLock().unlock();
         }
+        return Collections.emptyMap();
     }
 
-    private Class loadClassSecured(final Bundle bundle, final String name)
-            throws ClassNotFoundException {
-        if (System.getSecurityManager()!=null) {
+    /**
+     * Saves providers of all bundles in the data area of this bundle, so that the next {@link #trackBundles()}
+     * only needs to read service files of bundles which have changed in the mean time.
+     */
+    /*package*/ void saveIndex() {
+        ProvidersIndexStore store = getIndexStore();
+        if (store != null) {
             try {
-                return AccessController.doPrivileged(new PrivilegedExceptionAction<Class>(){
-                    public Class run() throws ClassNotFoundException {
-                        return bundle.loadClass(name);
-                    }
-                });
-            } catch (PrivilegedActionException e) {
-                throw ClassNotFoundException.class.cast(e.getException());
+                store.save(providersIndex.getAllProviders());
+            } catch (IOException e) {
+                debug("Unable to save providers index", e);
             }
-        } else {
-            return bundle.loadClass(name);
         }
     }
 
-    private boolean isCompatible(Class providerClass, Class serviceClass) {
-        try {
-            // We can't do an isAssignable check, because the provider class may not be assignable to service class
-            // in cases like JAXBContextFactory. So, we try to see if provider sees the same service class or not.
-            // Apparently, they need not. e.g., consider the following situation:
-            // Bundle B contains interface p.I.class.
-            // Export-Package: p
-            //
-            // Bundle B1 contains class p1.C1.class, which implements p.I.class
-            // Export-Package: p1; uses p
-            // Import-Package: p
-            //
-            // Bundle B2 contains class p2.C2.class, which extends p1.C1.class
-            // Import-Package: p1 (Note, it does not import p)
-            //
-            // Now, p2.C2.class.getClassLoader().loadClass("p.I") will fail.
-            // In such a case, we shall return TRUE and catch any bad provider in lookupProviderInstances() method
-            // which will again do an isAssignable test. See DefaultFactory.make() for example.
-            final Class<?> serviceClassSeenByProviderClass = Class.forName(serviceClass.getName(), false, providerClass.getClassLoader());
-            final boolean isCompatible = serviceClassSeenByProviderClass == serviceClass;
-            if (!isCompatible) {
-                debug(providerClass + " loaded by " + providerClass.getClassLoader()
-                        + " sees " + serviceClass + " from " + serviceClassSeenByProviderClass.getClassLoader()
-                        + ", where as caller uses " + serviceClass + " loaded by " + serviceClass.getClassLoader());
-            }
-            return isCompatible;
-        } catch (ClassNotFoundException e) {
-            debug("Unable to reach " + serviceClass + " from " + providerClass + ", which is loaded by " + providerClass.getClassLoader(), e);
-            return true;
+    /**
+     * Stops applying bundle changes in the background. Changes already received are still applied.
+     * Stops prewarming and unregisters the services of {@link #PUBLISH_SERVICES_PROP} too.
+     */
+    /*package*/ void stopTracking() {
+        indexUpdater.shutdown();
+        if (servicePublisher != null) {
+            servicePublisher.close();
+        }
+        Thread t = prewarmThread;
+        if (t != null) {
+            t.interrupt();
         }
     }
 
     /**
-     * Loads a single service file and returns the names of the providers.
-     * If the same provider appears multiple times, the list contains only one entry for all of the duplicates.
-     *
-     * @return names of providers, empty list if none is found
+     * Looks up provider classes of the services configured by {@link #PREWARM_PROP} and {@link #PREWARM_LEARNED_PROP}
+     * on a low priority background thread, so that they are cached by the time they are first needed.
+     * The service class is loaded through the bundles providing the service, which is what those providers see.
      */
-    private List<String> load(InputStream is) throws IOException {
-        List<String> providerNames = new ArrayList<String>();
-        try {
-            /*
-             * The format of service file is specified at
-             * http://java.sun.com/j2se/1.3/docs/guide/jar/jar.html#Service%20Provider
-             * According to the above spec,
-             * The file contains a list of fully-qualified binary names of
-             * concrete provider classes, one per line.
-             * Space and tab characters surrounding each name,
-             * as well as blank lines, are ignored.
-             * The comment character is '#' ('\u0023', NUMBER SIGN);
-             * on each line all characters following the first comment
-             * character are ignored. The file must be encoded in UTF-8.
-             */
-            Scanner scanner = new Scanner(is);
-            final String commentPattern = "#"; // NOI18N
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (!line.startsWith(commentPattern)) {
-                    StringTokenizer st = new StringTokenizer(line);
-                    while (st.hasMoreTokens()) {
-                        providerNames.add(st.nextToken());
-                        break; // Only one entry per line
-                    }
+    /*package*/ void prewarm() {
+        final Set<String> serviceNames = new LinkedHashSet<String>();
+        String configured = bundleContext.getProperty(PREWARM_PROP);
+        if (configured != null) {
+            for (String serviceName : configured.split(",")) {
+                if (serviceName.trim().length() > 0) {
+                    serviceNames.add(serviceName.trim());
                 }
             }
-        } finally {
-            is.close();
         }
-        return providerNames;
+        if (lookedUpServices != null) {
+            serviceNames.addAll(loadLearnedServices());
+        }
+        if (serviceNames.isEmpty()) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                prewarm(serviceNames);
+            }
+        }, "osgiresourcelocator-prewarm");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        prewarmThread = t;
+        t.start();
     }
 
-    private class BundleTracker implements BundleListener {
-        public void bundleChanged(BundleEvent event) {
-            Bundle bundle = event.getBundle();
-            switch (event.getType()) {
-                case BundleEvent.INSTALLED:
-                    addProviders(bundle);
-                    break;
-                case BundleEvent.UNINSTALLED:
-                    removeProviders(bundle);
-                    break;
-                case BundleEvent.UPDATED:
-                    removeProviders(bundle);
-                    addProviders(bundle);
-                    break;
+    private void prewarm(Collection<String> serviceNames) {
+        final long startTime = System.nanoTime();
+        for (String serviceName : serviceNames) {
+            Set<Class> serviceClasses = Collections.newSetFromMap(new IdentityHashMap<Class, Boolean>());
+            for (ProvidersPerBundle providers : providersIndex.getProviders(serviceName)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                Bundle bundle = bundleContext.getBundle(providers.getBundleId());
+                if (bundle == null) {
+                    continue;
+                }
+                try {
+                    Class serviceClass = loadClassSecured(bundle, serviceName);
+                    if (serviceClasses.add(serviceClass)) {
+                        lookupProviderClasses0(serviceClass, providersIndex, null, null);
+                    }
+                } catch (ClassNotFoundException e) {
+                    // This provider does not see the service class, so there is nothing to prewarm for it.
+                } catch (RuntimeException e) {
+                    if (isDebugEnabled()) debug("Failed to prewarm " + serviceName, e);
+                } catch (LinkageError e) {
+                    if (isDebugEnabled()) debug("Failed to prewarm " + serviceName, e);
+                }
             }
         }
+        if (isDebugEnabled()) debug("Prewarmed " + serviceNames + " in " + (System.nanoTime() - startTime) / 1000000 + " ms");
     }
 
-    private void addProviders(Bundle bundle) {
-        rwLock.writeLock().lock();
-        try {
-            final String SERVICE_LOCATION = "META-INF/services";
-            if (bundle.getEntry(SERVICE_LOCATION) == null) return;
-            Enumeration<String> entries;
-            entries = bundle.getEntryPaths(SERVICE_LOCATION);
-            if (entries != null) {
-                ProvidersPerBundle providers = new ProvidersPerBundle(bundle.getBundleId());
-                while (entries.hasMoreElements()) {
-                    String entry = entries.nextElement();
-                    String serviceName = entry.substring(SERVICE_LOCATION.length() + 1);
-                    InputStream is;
-                    final URL url = bundle.getEntry(entry);
-                    try {
-                        is = url.openStream();
-                        List<String> providerNames = load(is);
-                        debug("Bundle = " + bundle + ", serviceName = " + serviceName + ", providerNames = " + providerNames);
-                        providers.put(serviceName, providerNames);
-                    } catch (IOException e) {
+    private Set<String> loadLearnedServices() {
+        Set<String> serviceNames = new LinkedHashSet<String>();
+        File file = bundleContext.getDataFile(PREWARM_FILE);
+        if (file != null && file.isFile()) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.length() > 0) {
+                            serviceNames.add(line);
+                        }
                     }
+                } finally {
+                    reader.close();
                 }
-                providersList.addProviders(providers);
+            } catch (IOException e) {
+                if (isDebugEnabled()) debug("Ignoring " + file, e);
             }
-        } finally {
-            rwLock.writeLock().unlock();
         }
+        return serviceNames;
     }
 
-    private synchronized void removeProviders(Bundle bundle) {
-        rwLock.writeLock().lock();
+    /**
+     * Saves the names of services looked up during this run, to be prewarmed during the next one.
+     * Does nothing unless {@link #PREWARM_LEARNED_PROP} is set.
+     */
+    /*package*/ void saveLearnedServices() {
+        File file = lookedUpServices != null ? bundleContext.getDataFile(PREWARM_FILE) : null;
+        if (file == null) {
+            return;
+        }
+        // Written aside and renamed, so that a crash never leaves a truncated file behind.
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean saved = false;
         try {
-            providersList.removeProviders(bundle.getBundleId());
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                for (String serviceName : lookedUpServices) {
+                    writer.write(serviceName);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            ProvidersIndexStore.replace(tmp, file);
+            saved = true;
+        } catch (IOException e) {
+            if (isDebugEnabled()) debug("Unable to save " + file, e);
         } finally {
-            rwLock.writeLock().unlock();
+            if (!saved) {
+                tmp.delete();
+            }
         }
     }
 
-    /**
-     * Map of service name to provider names for a particular bundle
-     */
-    private static class ProvidersPerBundle {
-        private long bundleId;
-        Map<String, List<String>> serviceToProvidersMap = new HashMap<String, List<String>>();
-
-        private ProvidersPerBundle(long bundleId) {
-            this.bundleId = bundleId;
+    private void serviceLookedUp(String serviceName) {
+        statistics.serviceLookedUp(serviceName);
+        if (lookedUpServices != null) {
+            lookedUpServices.add(serviceName);
         }
+    }
 
-        public long getBundleId() {
-            return bundleId;
+    private ProvidersIndexStore getIndexStore() {
+        if (Boolean.FALSE.toString().equalsIgnoreCase(bundleContext.getProperty(PERSISTENT_INDEX_PROP))) {
+            return null;
         }
+        File file = bundleContext.getDataFile(PERSISTENT_INDEX_FILE);
+        return file != null ? new ProvidersIndexStore(file, bundleContext) : null;
+    }
 
-        public void put(String serviceName, List<String> providerNames) {
-            serviceToProvidersMap.put(serviceName, providerNames);
+    /**
+     * Parses service files of the given bundles using a bounded pool of threads.
+     *
+     * @return providers of the bundles, in the same order as the bundles
+     */
+    private List<ProvidersPerBundle> scanInParallel(List<Bundle> bundles) {
+        if (bundles.isEmpty()) {
+            return Collections.emptyList();
         }
-
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        String threads = bundleContext.getProperty(SCAN_THREADS_PROP);
+        if (threads != null) {
+            try {
+                nThreads = Integer.parseInt(threads.trim());
+            } catch (NumberFormatException e) {
+                if (isDebugEnabled()) debug("Ignoring " + SCAN_THREADS_PROP + "=" + threads, e);
+            }
+        }
+        // 0 or less, like too many threads, makes no sense either
+        nThreads = Math.max(1, Math.min(nThreads, bundles.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "osgiresourcelocator-scanner-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<ProvidersPerBundle>> futures = new ArrayList<Future<ProvidersPerBundle>>(bundles.size());
+            for (final Bundle bundle : bundles) {
+                futures.add(executor.submit(new Callable<ProvidersPerBundle>() {
+                    public ProvidersPerBundle call() {
+                        return parseProviders(bundle);
+                    }
+                }));
+            }
+            List<ProvidersPerBundle> scanned = new ArrayList<ProvidersPerBundle>();
+            for (Future<ProvidersPerBundle> future : futures) {
+                try {
+                    scanned.add(future.get());
+                } catch (ExecutionException e) {
+                    // Most likely the bundle got uninstalled while being scanned, in which case
+                    // the BundleTracker takes care of it.
+                    debug("Failed to scan a bundle", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            return scanned;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*package*/ boolean awaitConsistency1(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // Events of a change which has just been made may not have been delivered yet, so rather than
+        // relying on them, compare the index with the bundles which are installed right now.
+        ProvidersIndex index = providersIndex;
+        Map<Long, Bundle> staleBundles = new HashMap<Long, Bundle>();
+        for (Bundle bundle : bundleContext.getBundles()) {
+            ProvidersPerBundle providers = index.getProvidersOfBundle(bundle.getBundleId());
+            if (providers == null || !providers.isUpToDate(bundle)) {
+                staleBundles.put(bundle.getBundleId(), bundle);
+            }
+        }
+        for (ProvidersPerBundle providers : index.getAllProviders()) {
+            Bundle bundle = bundleContext.getBundle(providers.getBundleId());
+            if (bundle == null || !providers.isUpToDate(bundle)) {
+                staleBundles.put(providers.getBundleId(), bundle);
+            }
+        }
+        boolean applyNow = false;
+        final long target;
+        synchronized (pendingLock) {
+            if (!staleBundles.isEmpty()) {
+                applyNow = scheduleUpdate(staleBundles);
+            }
+            // Only wait for what has been scheduled so far, so that an ongoing event storm can't delay the caller.
+            target = scheduledCount;
+        }
+        if (applyNow) {
+            applyPendingBundles();
+        }
+        synchronized (pendingLock) {
+            while (appliedCount < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(pendingLock, remaining);
+            }
+            return true;
+        }
+    }
+
+    /*package*/ <T> Iterable<? extends T> lookupProviderInstances1(final Class<T> serviceClass, ProviderFactory<T> factory,
+                                                                 final InstanceScope scope) {
+        if (factory == null) {
+            factory = new DefaultFactory<T>();
+        }
+        final ProviderFactory<T> providerFactory = factory;
+        // Providers are loaded and instantiated only as the caller advances the iterator.
+        return new Iterable<T>() {
+            public Iterator<T> iterator() {
+                final long startTime = System.nanoTime();
+                serviceLookedUp(serviceClass.getName());
+                LocatorEvents.Lookup event =
+                        LocatorEvents.beginLookup("lookupProviderInstances", serviceClass.getName());
+                return new ProviderInstanceIterator<T>(providerClassIterator(serviceClass, event), serviceClass,
+                        providerFactory, scope, startTime, event);
+            }
+        };
+    }
+
+    /*package*/ <T> T lookupFirstProviderInstance1(Class<T> serviceClass, ProviderFactory<T> factory,
+                                                 InstanceScope scope) {
+        Iterator<? extends T> iterator = lookupProviderInstances1(serviceClass, factory, scope).iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /*package*/ <T> Iterable<Class> lookupProviderClasses1(Class<T> serviceClass) {
+        final long startTime = System.nanoTime();
+        final LocatorEvents.Lookup event = LocatorEvents.beginLookup("lookupProviderClasses", serviceClass.getName());
+        try {
+            serviceLookedUp(serviceClass.getName());
+            return lookupProviderClasses0(serviceClass, providersIndex, event, null);
+        } finally {
+            statistics.record(LOOKUP_PROVIDER_CLASSES, startTime);
+            if (event != null) {
+                event.commit();
+            }
+        }
+    }
+
+    /*package*/ Map<Class<?>, Iterable<Class>> lookupProviderClasses1(Collection<? extends Class<?>> serviceClasses) {
+        final long startTime = System.nanoTime();
+        try {
+            // A single snapshot, so that all services are looked up against the same state of the index.
+            final ProvidersIndex index = providersIndex;
+            final Map<Long, Map<String, Class>> loadedClasses = new HashMap<Long, Map<String, Class>>();
+            Map<Class<?>, Iterable<Class>> result = new LinkedHashMap<Class<?>, Iterable<Class>>();
+            for (Class<?> serviceClass : serviceClasses) {
+                if (result.containsKey(serviceClass)) {
+                    continue;
+                }
+                final LocatorEvents.Lookup event =
+                        LocatorEvents.beginLookup("lookupProviderClasses", serviceClass.getName());
+                serviceLookedUp(serviceClass.getName());
+                result.put(serviceClass, lookupProviderClasses0(serviceClass, index, event, loadedClasses));
+                if (event != null) {
+                    event.commit();
+                }
+            }
+            return Collections.unmodifiableMap(result);
+        } finally {
+            statistics.record(LOOKUP_PROVIDER_CLASSES_BATCH, startTime);
+        }
+    }
+
+    /**
+     * @param index snapshot to look up the providers in
+     * @param event flight recorder event of the look up, null if there is none
+     * @param loadedClasses classes loaded by previous look ups of the same batch, by bundle id and class name,
+     *                      which is updated with the classes loaded by this one. Null if there is no batch.
+     */
+    private <T> Iterable<Class> lookupProviderClasses0(Class<T> serviceClass, ProvidersIndex index,
+                                                       LocatorEvents.Lookup event,
+                                                       Map<Long, Map<String, Class>> loadedClasses) {
+        final String serviceName = serviceClass.getName();
+        final List<ProvidersPerBundle> providersList = index.getProviders(serviceName);
+        if (event != null) {
+            event.setCandidates(providersList.size());
+        }
+        if (providersList.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // The list is replaced in the index whenever a bundle providing this service changes,
+        // so an identical list means the cached classes were resolved against the same bundles.
+        ResolvedProviders resolved = providerClassesCache.get(serviceClass);
+        final boolean hit = resolved != null && resolved.getProvidersList() == providersList;
+        statistics.providerClassCacheHit(hit);
+        if (hit) {
+            return resolved.getProviderClasses();
+        }
+        final long stamp = providerClassesCache.stamp();
+        List<Class> providerClasses = new ArrayList<Class>();
+        Iterator<Class> iterator = new ProviderClassIterator(serviceClass, providersList, event, loadedClasses);
+        while (iterator.hasNext()) {
+            providerClasses.add(iterator.next());
+        }
+        resolved = new ResolvedProviders(providersList, providerClasses, getBundleId(serviceClass));
+        providerClassesCache.put(serviceClass, resolved, stamp);
+        return resolved.getProviderClasses();
+    }
+
+    /*package*/ <T> List<ProviderDescriptor> lookupProviderDescriptors1(Class<T> serviceClass) {
+        final long startTime = System.nanoTime();
+        final LocatorEvents.Lookup event =
+                LocatorEvents.beginLookup("lookupProviderDescriptors", serviceClass.getName());
+        try {
+            final String serviceName = serviceClass.getName();
+            serviceLookedUp(serviceName);
+            final long serviceBundleId = getBundleId(serviceClass);
+            List<ProviderDescriptor> descriptors = new ArrayList<ProviderDescriptor>();
+            List<ProvidersPerBundle> providersList = providersIndex.getProviders(serviceName);
+            if (event != null) {
+                event.setCandidates(providersList.size());
+            }
+            for (ProvidersPerBundle providersPerBundle : providersList) {
+                Bundle bundle = bundleContext.getBundle(providersPerBundle.getBundleId());
+                if (bundle == null) { // bundle may have been uninstalled
+                    continue;
+                }
+                WiringCompatibilityChecker.Result compatibility = checkWiring(bundle, serviceClass, serviceBundleId);
+                if (compatibility == WiringCompatibilityChecker.Result.INCOMPATIBLE) {
+                    continue;
+                }
+                for (String providerName : providersPerBundle.getProviderNames(serviceName)) {
+                    descriptors.add(new BundleProviderDescriptor(providerName, bundle, serviceClass,
+                            providersPerBundle.getClassMetadata(bundle, providerName),
+                            compatibility == WiringCompatibilityChecker.Result.UNKNOWN));
+                }
+            }
+            return Collections.unmodifiableList(descriptors);
+        } finally {
+            statistics.record(LOOKUP_PROVIDER_DESCRIPTORS, startTime);
+            if (event != null) {
+                event.commit();
+            }
+        }
+    }
+
+    /*package*/ <T> Subscription track1(Class<T> serviceClass, ProviderListener<T> listener) {
+        serviceLookedUp(serviceClass.getName());
+        ProviderSubscription<T> subscription = new ProviderSubscription<T>(serviceClass, listener);
+        // Add it first, so that no change published in the mean time is missed.
+        subscriptions.add(subscription);
+        subscription.refresh();
+        return subscription;
+    }
+
+    /**
+     * Brings every subscription up to date with the current index.
+     */
+    private void refreshSubscriptions() {
+        for (ProviderSubscription subscription : subscriptions) {
+            subscription.refresh();
+        }
+    }
+
+    /*package*/ List<ProviderLoadFailure> getProviderLoadFailures1() {
+        return loadFailures.getAll();
+    }
+
+    /**
+     * @return what the wiring of the given provider bundle tells about its compatibility with the given service class,
+     * always {@link WiringCompatibilityChecker.Result#UNKNOWN} unless {@link #COMPATIBILITY_CHECK_WIRING} is used.
+     */
+    private WiringCompatibilityChecker.Result checkWiring(Bundle providerBundle, Class serviceClass,
+                                                          long serviceBundleId) {
+        return wiringChecker != null ? wiringChecker.check(providerBundle, serviceClass, serviceBundleId)
+                : WiringCompatibilityChecker.Result.UNKNOWN;
+    }
+
+    /**
+     * Reads the class file of the given class from the given bundle, without consulting its class path or imports.
+     */
+    private static ClassMetadata readClassMetadata(Bundle bundle, String className) {
+        try {
+            URL url = bundle.getEntry(className.replace('.', '/') + ".class");
+            if (url != null) {
+                return ClassMetadata.read(url.openStream());
+            }
+        } catch (IOException e) {
+        } catch (IllegalStateException e) {
+            // The bundle got uninstalled
+        }
+        return ClassMetadata.UNAVAILABLE;
+    }
+
+    /**
+     * @return an iterator over compatible provider classes of the given service, which uses cached classes
+     * when they are still valid and loads classes one at a time otherwise.
+     */
+    private Iterator<Class> providerClassIterator(Class serviceClass, LocatorEvents.Lookup event) {
+        final List<ProvidersPerBundle> providersList = providersIndex.getProviders(serviceClass.getName());
+        if (event != null) {
+            event.setCandidates(providersList.size());
+        }
+        ResolvedProviders resolved = providerClassesCache.get(serviceClass);
+        if (resolved != null && resolved.getProvidersList() == providersList) {
+            return resolved.getProviderClasses().iterator();
+        }
+        return new ProviderClassIterator(serviceClass, providersList, event, null);
+    }
+
+    /**
+     * @return id of the bundle which defines the given class or -1 if it is not defined by a bundle
+     */
+    private static long getBundleId(Class c) {
+        ClassLoader cl = c.getClassLoader();
+        if (cl instanceof BundleReference) {
+            Bundle bundle = BundleReference.class.cast(cl).getBundle();
+            if (bundle != null) {
+                return bundle.getBundleId();
+            }
+        }
+        return -1;
+    }
+
+    private Class loadClassSecured(final Bundle bundle, final String name)
+            throws ClassNotFoundException {
+        if (System.getSecurityManager()!=null) {
+            try {
+                return AccessController.doPrivileged(new PrivilegedExceptionAction<Class>(){
+                    public Class run() throws ClassNotFoundException {
+                        return bundle.loadClass(name);
+                    }
+                });
+            } catch (PrivilegedActionException e) {
+                throw ClassNotFoundException.class.cast(e.getException());
+            }
+        } else {
+            return bundle.loadClass(name);
+        }
+    }
+
+    private boolean isCompatible(Class providerClass, Class serviceClass) {
+        try {
+            // We can't do an isAssignable check, because the provider class may not be assignable to service class
+            // in cases like JAXBContextFactory. So, we try to see if provider sees the same service class or not.
+            // Apparently, they need not. e.g., consider the following situation:
+            // Bundle B contains interface p.I.class.
+            // Export-Package: p
+            //
+            // Bundle B1 contains class p1.C1.class, which implements p.I.class
+            // Export-Package: p1; uses p
+            // Import-Package: p
+            //
+            // Bundle B2 contains class p2.C2.class, which extends p1.C1.class
+            // Import-Package: p1 (Note, it does not import p)
+            //
+            // Now, p2.C2.class.getClassLoader().loadClass("p.I") will fail.
+            // In such a case, we shall return TRUE and catch any bad provider in lookupProviderInstances() method
+            // which will again do an isAssignable test. See DefaultFactory.make() for example.
+            final Class<?> serviceClassSeenByProviderClass = Class.forName(serviceClass.getName(), false, providerClass.getClassLoader());
+            final boolean isCompatible = serviceClassSeenByProviderClass == serviceClass;
+            if (!isCompatible && isDebugEnabled()) {
+                debug(providerClass + " loaded by " + providerClass.getClassLoader()
+                        + " sees " + serviceClass + " from " + serviceClassSeenByProviderClass.getClassLoader()
+                        + ", where as caller uses " + serviceClass + " loaded by " + serviceClass.getClassLoader());
+            }
+            return isCompatible;
+        } catch (ClassNotFoundException e) {
+            if (isDebugEnabled()) debug("Unable to reach " + serviceClass + " from " + providerClass + ", which is loaded by " + providerClass.getClassLoader(), e);
+            return true;
+        }
+    }
+
+    /**
+     * Loads a single service file and returns the names of the providers.
+     * If the same provider appears multiple times, the list contains only one entry for all of the duplicates.
+     *
+     * @return names of providers, empty list if none is found
+     */
+    private static List<String> load(InputStream is) throws IOException {
+        List<String> providerNames = new ArrayList<String>();
+        try {
+            /*
+             * The format of service file is specified at
+             * http://java.sun.com/j2se/1.3/docs/guide/jar/jar.html#Service%20Provider
+             * According to the above spec,
+             * The file contains a list of fully-qualified binary names of
+             * concrete provider classes, one per line.
+             * Space and tab characters surrounding each name,
+             * as well as blank lines, are ignored.
+             * The comment character is '#' ('\u0023', NUMBER SIGN);
+             * on each line all characters following the first comment
+             * character are ignored. The file must be encoded in UTF-8.
+             */
+            Scanner scanner = new Scanner(is);
+            final String commentPattern = "#"; // NOI18N
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+                if (!line.startsWith(commentPattern)) {
+                    StringTokenizer st = new StringTokenizer(line);
+                    while (st.hasMoreTokens()) {
+                        providerNames.add(st.nextToken());
+                        break; // Only one entry per line
+                    }
+                }
+            }
+        } finally {
+            is.close();
+        }
+        return providerNames;
+    }
+
+    private class BundleTracker implements BundleListener {
+        public void bundleChanged(BundleEvent event) {
+            final long startTime = System.nanoTime();
+            try {
+                bundleChanged0(event);
+            } finally {
+                statistics.record(BUNDLE_EVENT, startTime);
+            }
+        }
+
+        private void bundleChanged0(BundleEvent event) {
+            Bundle bundle = event.getBundle();
+            switch (event.getType()) {
+                case BundleEvent.STOPPED:
+                    providerInstancesCache.invalidate(bundle.getBundleId());
+                    break;
+                case BundleEvent.UNINSTALLED:
+                case BundleEvent.UPDATED:
+                    // Instances are evicted right away rather than when the index gets updated.
+                    providerInstancesCache.invalidate(bundle.getBundleId());
+                    // fall through
+                case BundleEvent.INSTALLED:
+                    // Whatever the event, the bundle is read again in the state it is in by the time the change
+                    // gets applied, so several events for the same bundle only need to be applied once.
+                    if (syncEvents) {
+                        updateProviders(Collections.singletonMap(bundle.getBundleId(), bundle));
+                    } else {
+                        boolean applyNow;
+                        synchronized (pendingLock) {
+                            applyNow = scheduleUpdate(Collections.singletonMap(bundle.getBundleId(), bundle));
+                        }
+                        if (applyNow) {
+                            applyPendingBundles();
+                        }
+                    }
+                    break;
+                case BundleEvent.RESOLVED:
+                    // Classes cached while the bundle was unresolved leave out its providers.
+                    providerClassesCache.invalidate(bundle.getBundleId());
+                    // A dependency missing so far may have been installed.
+                    loadFailures.invalidate(bundle.getBundleId());
+                    // Providers dropped when a bundle got unresolved may be available again.
+                    refreshSubscriptions();
+                    break;
+                case BundleEvent.UNRESOLVED:
+                    // The bundle is being refreshed, so classes loaded from its old wiring are stale.
+                    for (ProviderSubscription subscription : subscriptions) {
+                        subscription.bundleUnresolved(bundle.getBundleId());
+                    }
+                    providerClassesCache.invalidate(bundle.getBundleId());
+                    providerInstancesCache.invalidate(bundle.getBundleId());
+                    loadFailures.invalidate(bundle.getBundleId());
+                    if (wiringChecker != null) {
+                        wiringChecker.invalidate(bundle.getBundleId());
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Adds the given bundles to {@link #pendingBundles} and makes sure they get applied by {@link #indexUpdater}.
+     * Caller must hold {@link #pendingLock}.
+     *
+     * @return true if {@link #indexUpdater} has been stopped, in which case the caller must call
+     * {@link #applyPendingBundles()} itself once it no longer holds {@link #pendingLock}
+     */
+    private boolean scheduleUpdate(Map<Long, Bundle> bundles) {
+        pendingBundles.putAll(bundles);
+        scheduledCount++;
+        if (!updating) {
+            updating = true;
+            try {
+                indexUpdater.execute(new Runnable() {
+                    public void run() {
+                        applyPendingBundles();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // We have been stopped, the caller applies the change instead. Updating stays true until it has,
+                // so that concurrent events don't apply it too.
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies {@link #pendingBundles} in batches until there is none left.
+     */
+    private void applyPendingBundles() {
+        boolean done = false;
+        try {
+            while (true) {
+                Map<Long, Bundle> bundles;
+                long batchCount;
+                synchronized (pendingLock) {
+                    if (pendingBundles.isEmpty()) {
+                        updating = false;
+                        done = true;
+                        return;
+                    }
+                    bundles = new LinkedHashMap<Long, Bundle>(pendingBundles);
+                    pendingBundles.clear();
+                    batchCount = scheduledCount;
+                }
+                try {
+                    updateProviders(bundles);
+                } catch (RuntimeException e) {
+                    if (isDebugEnabled()) debug("Failed to update providers of bundles " + bundles.keySet(), e);
+                }
+                synchronized (pendingLock) {
+                    appliedCount = batchCount;
+                    pendingLock.notifyAll();
+                }
+            }
+        } finally {
+            if (!done) {
+                // Don't leave waiters behind if we die of an Error.
+                synchronized (pendingLock) {
+                    updating = false;
+                    appliedCount = scheduledCount;
+                    pendingLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads service files of the given bundles again and replaces their providers in the index in one step.
+     * Bundles which are null or no longer installed are removed from the index.
+     */
+    private void updateProviders(Map<Long, Bundle> bundles) {
+        final long startTime = System.nanoTime();
+        final LocatorEvents.IndexUpdate event = LocatorEvents.beginIndexUpdate("providers");
+        // Parsing is done outside the lock, only publishing the new snapshot is serialized.
+        List<ProvidersPerBundle> parsed = new ArrayList<ProvidersPerBundle>(bundles.size());
+        Set<Long> removed = new HashSet<Long>(bundles.keySet());
+        for (Bundle bundle : bundles.values()) {
+            if (bundle != null && bundle.getState() != Bundle.UNINSTALLED) {
+                try {
+                    parsed.add(parseProviders(bundle));
+                    removed.remove(bundle.getBundleId());
+                } catch (IllegalStateException e) {
+                    // Uninstalled while being read, so it has to be removed.
+                }
+            }
+        }
+        synchronized (indexLock) {
+            if (bundlesChangedDuringScan != null) {
+                bundlesChangedDuringScan.addAll(bundles.keySet());
+            }
+            publish(providersIndex.withoutProviders(removed).withProviders(parsed));
+        }
+        for (Long bundleId : bundles.keySet()) {
+            providerClassesCache.invalidate(bundleId);
+            loadFailures.invalidate(bundleId);
+            if (wiringChecker != null) {
+                wiringChecker.invalidate(bundleId);
+            }
+        }
+        refreshSubscriptions();
+        publishServices();
+        statistics.record(INDEX_UPDATE, startTime);
+        if (event != null) {
+            event.commit(bundles.size(), providersIndex.getProviderCount());
+        }
+    }
+
+    /**
+     * Brings the services of {@link #PUBLISH_SERVICES_PROP} in line with the current index.
+     */
+    private void publishServices() {
+        if (servicePublisher == null) {
+            return;
+        }
+        // The publisher reads the index under its own lock, so that an older snapshot never replaces a newer one.
+        servicePublisher.update(new ProviderServicePublisher.Index() {
+            public Collection<ProvidersPerBundle> getAllProviders() {
+                return providersIndex.getAllProviders();
+            }
+        });
+    }
+
+    /**
+     * Reads all service files of the given bundle, or only their names in {@link #PARSE_MODE_LAZY} mode.
+     * It does not modify any state, so it is safe to call it concurrently.
+     *
+     * @return providers of the bundle, which are empty if the bundle does not have any service file
+     */
+    private ProvidersPerBundle parseProviders(Bundle bundle) {
+        // Read the time stamp first, so that a concurrent update makes the result look out of date.
+        final long lastModified = bundle.getLastModified();
+        final LocatorEvents.Parse event = LocatorEvents.beginParse(bundle.getBundleId());
+        Map<String, List<String>> serviceToProvidersMap = new HashMap<String, List<String>>();
+        Enumeration<String> entries = null;
+        if (bundle.getEntry(SERVICE_LOCATION) != null) {
+            entries = bundle.getEntryPaths(SERVICE_LOCATION);
+        }
+        if (entries != null) {
+            while (entries.hasMoreElements()) {
+                String entry = entries.nextElement();
+                String serviceName = entry.substring(SERVICE_LOCATION.length() + 1);
+                if (lazyParsing) {
+                    serviceToProvidersMap.put(serviceName,
+                            new LazyProviderNames(bundleContext, bundle.getBundleId(), serviceName));
+                    continue;
+                }
+                InputStream is;
+                final URL url = bundle.getEntry(entry);
+                try {
+                    is = url.openStream();
+                    List<String> providerNames = load(event != null ? event.count(is) : is);
+                    serviceToProvidersMap.put(serviceName, providerNames);
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (event != null) {
+            event.commit();
+        }
+        return new ProvidersPerBundle(bundle.getBundleId(), bundle.getLocation(), lastModified, serviceToProvidersMap);
+    }
+
+    /**
+     * Makes the given snapshot visible to readers. Caller must hold {@link #indexLock}.
+     */
+    private void publish(ProvidersIndex newIndex) {
+        providersIndex = newIndex;
+        statistics.setServiceIndexSize(newIndex.getServiceCount(), newIndex.getProviderCount());
+    }
+
+    /**
+     * Map of service name to provider names for a particular bundle. Instances are immutable.
+     */
+    /*package*/ static class ProvidersPerBundle {
+        private final long bundleId;
+        private final String location;
+        private final long lastModified;
+        private final Map<String, List<String>> serviceToProvidersMap;
+        private final int providerCount;
+
+        /**
+         * Class files read from this version of the bundle by class name, created when first needed.
+         */
+        private volatile ConcurrentMap<String, ClassMetadata> classMetadata;
+
+        /*package*/ ProvidersPerBundle(long bundleId, String location, long lastModified,
+                                       Map<String, List<String>> serviceToProvidersMap) {
+            this.bundleId = bundleId;
+            this.location = location;
+            this.lastModified = lastModified;
+            this.serviceToProvidersMap = Collections.unmodifiableMap(serviceToProvidersMap);
+            int count = 0;
+            for (List<String> providerNames : serviceToProvidersMap.values()) {
+                // Service files which have not been read yet are not counted, so as not to read them.
+                List<String> readNames = LazyProviderNames.peek(providerNames);
+                count += readNames != null ? readNames.size() : 0;
+            }
+            this.providerCount = count;
+        }
+
+        public long getBundleId() {
+            return bundleId;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return true if the bundle has not been reinstalled or updated since these providers were read from it
+         */
+        public boolean isUpToDate(Bundle bundle) {
+            return bundle.getBundleId() == bundleId && bundle.getLastModified() == lastModified
+                    && location.equals(bundle.getLocation());
+        }
+
         public Map<String, List<String>> getServiceToProvidersMap() {
             return serviceToProvidersMap;
         }
+
+        /**
+         * @return total number of provider names in all service files of this bundle which had been read
+         * when this object was created
+         */
+        public int getProviderCount() {
+            return providerCount;
+        }
+
+        /**
+         * @return metadata of the given class read from the given bundle, which must be the version of the bundle
+         * these providers have been read from. It is read once and kept as long as this object.
+         */
+        /*package*/ ClassMetadata getClassMetadata(Bundle bundle, String className) {
+            ConcurrentMap<String, ClassMetadata> map = classMetadata;
+            if (map == null) {
+                synchronized (this) {
+                    if (classMetadata == null) {
+                        classMetadata = new ConcurrentHashMap<String, ClassMetadata>(4);
+                    }
+                    map = classMetadata;
+                }
+            }
+            ClassMetadata metadata = map.get(className);
+            if (metadata == null) {
+                metadata = readClassMetadata(bundle, className);
+                ClassMetadata existing = map.putIfAbsent(className, metadata);
+                if (existing != null) {
+                    metadata = existing;
+                }
+            }
+            return metadata;
+        }
+
+        /**
+         * @return names of providers of the given service in this bundle, empty list if none is found
+         */
+        public List<String> getProviderNames(String serviceName) {
+            List<String> providerNames = serviceToProvidersMap.get(serviceName);
+            return providerNames != null ? providerNames : Collections.<String>emptyList();
+        }
+    }
+
+    /**
+     * Provider names of a service file, which is only read the first time they are asked for.
+     * The result is kept until the bundle changes, at which point the bundle's {@link ProvidersPerBundle} is replaced.
+     * The bundle is looked up by id when the file is read, so that instances can be created from the saved index too.
+     */
+    /*package*/ static class LazyProviderNames extends AbstractList<String> implements RandomAccess {
+        private final BundleContext bundleContext;
+        private final long bundleId;
+        private final String serviceName;
+        private volatile List<String> providerNames;
+
+        /*package*/ LazyProviderNames(BundleContext bundleContext, long bundleId, String serviceName) {
+            this.bundleContext = bundleContext;
+            this.bundleId = bundleId;
+            this.serviceName = serviceName;
+        }
+
+        /**
+         * @return the given provider names if they are not lazy or have already been read, null otherwise
+         */
+        /*package*/ static List<String> peek(List<String> providerNames) {
+            return providerNames instanceof LazyProviderNames
+                    ? LazyProviderNames.class.cast(providerNames).providerNames : providerNames;
+        }
+
+        public String get(int index) {
+            return getProviderNames().get(index);
+        }
+
+        public int size() {
+            return getProviderNames().size();
+        }
+
+        private List<String> getProviderNames() {
+            List<String> names = providerNames;
+            if (names == null) {
+                // Concurrent callers may all read the file, which is harmless.
+                names = read();
+                providerNames = names;
+            }
+            return names;
+        }
+
+        private List<String> read() {
+            Bundle bundle = bundleContext.getBundle(bundleId);
+            try {
+                URL url = bundle != null ? bundle.getEntry(SERVICE_LOCATION + "/" + serviceName) : null;
+                if (url != null) {
+                    LocatorEvents.Parse event = LocatorEvents.beginParse(bundleId);
+                    InputStream is = url.openStream();
+                    List<String> names = load(event != null ? event.count(is) : is);
+                    if (event != null) {
+                        event.commit();
+                    }
+                    return Collections.unmodifiableList(names);
+                }
+            } catch (IOException e) {
+            } catch (IllegalStateException e) {
+                // The bundle got uninstalled, it is about to be removed from the index.
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * An immutable snapshot of {@link ServiceLoaderImpl.ProvidersPerBundle} indexed by service name.
+     * Every modification returns a new snapshot which shares all unaffected lists with the old one. Both maps
+     * are copied in full, so an update costs O(services + bundles), plus the size of the lists of the services
+     * touched by the updated bundles. Batching bundles into one update, as the event modes do, pays the copy once.
+     * Synchronisation of writers is handled by outer class.
+     */
+    private static class ProvidersIndex {
+        static final ProvidersIndex EMPTY = new ProvidersIndex(
+                Collections.<Long, ProvidersPerBundle>emptyMap(),
+                Collections.<String, List<ProvidersPerBundle>>emptyMap(), 0);
+
+        private final Map<Long, ProvidersPerBundle> bundleIdToProviders;
+
+        // Every list is sorted in ascending order of bundle id
+        private final Map<String, List<ProvidersPerBundle>> serviceToProviders;
+
+        private final long providerCount;
+
+        private ProvidersIndex(Map<Long, ProvidersPerBundle> bundleIdToProviders,
+                               Map<String, List<ProvidersPerBundle>> serviceToProviders, long providerCount) {
+            this.bundleIdToProviders = bundleIdToProviders;
+            this.serviceToProviders = serviceToProviders;
+            this.providerCount = providerCount;
+        }
+
+        int getServiceCount() {
+            return serviceToProviders.size();
+        }
+
+        long getProviderCount() {
+            return providerCount;
+        }
+
+        /**
+         * @return providers of every bundle known to this index, including bundles without any service file.
+         */
+        Collection<ProvidersPerBundle> getAllProviders() {
+            return bundleIdToProviders.values();
+        }
+
+        /**
+         * @return providers of the given bundle, null if the bundle is not known to this index
+         */
+        ProvidersPerBundle getProvidersOfBundle(long bundleId) {
+            return bundleIdToProviders.get(bundleId);
+        }
+
+        /**
+         * @return a list of {@link ProvidersPerBundle} having the given service, sorted in ascending order of bundle id.
+         */
+        List<ProvidersPerBundle> getProviders(String serviceName) {
+            List<ProvidersPerBundle> providers = serviceToProviders.get(serviceName);
+            return providers != null ? providers : Collections.<ProvidersPerBundle>emptyList();
+        }
+
+        /**
+         * @return a new snapshot where providers of the same bundles, if any, are replaced by the given ones
+         */
+        ProvidersIndex withProviders(Collection<ProvidersPerBundle> providersOfBundles) {
+            if (providersOfBundles.isEmpty()) {
+                return this;
+            }
+            Map<Long, ProvidersPerBundle> newBundleIdToProviders =
+                    new HashMap<Long, ProvidersPerBundle>(bundleIdToProviders);
+            Map<String, List<ProvidersPerBundle>> newServiceToProviders =
+                    new HashMap<String, List<ProvidersPerBundle>>(serviceToProviders);
+            long newProviderCount = providerCount;
+            for (ProvidersPerBundle providers : providersOfBundles) {
+                ProvidersPerBundle old = newBundleIdToProviders.put(providers.getBundleId(), providers);
+                if (old != null) {
+                    unlink(newServiceToProviders, old);
+                    newProviderCount -= old.getProviderCount();
+                }
+                link(newServiceToProviders, providers);
+                newProviderCount += providers.getProviderCount();
+            }
+            return new ProvidersIndex(newBundleIdToProviders, newServiceToProviders, newProviderCount);
+        }
+
+        /**
+         * @return a new snapshot without any provider of the given bundles
+         */
+        ProvidersIndex withoutProviders(Collection<Long> bundleIds) {
+            if (Collections.disjoint(bundleIdToProviders.keySet(), bundleIds)) {
+                return this;
+            }
+            Map<Long, ProvidersPerBundle> newBundleIdToProviders =
+                    new HashMap<Long, ProvidersPerBundle>(bundleIdToProviders);
+            Map<String, List<ProvidersPerBundle>> newServiceToProviders =
+                    new HashMap<String, List<ProvidersPerBundle>>(serviceToProviders);
+            long newProviderCount = providerCount;
+            for (Long bundleId : bundleIds) {
+                ProvidersPerBundle old = newBundleIdToProviders.remove(bundleId);
+                if (old != null) {
+                    unlink(newServiceToProviders, old);
+                    newProviderCount -= old.getProviderCount();
+                }
+            }
+            return new ProvidersIndex(newBundleIdToProviders, newServiceToProviders, newProviderCount);
+        }
+
+        private static void link(Map<String, List<ProvidersPerBundle>> serviceToProviders,
+                                 ProvidersPerBundle providers) {
+            for (String serviceName : providers.getServiceToProvidersMap().keySet()) {
+                List<ProvidersPerBundle> oldList = serviceToProviders.get(serviceName);
+                List<ProvidersPerBundle> newList;
+                if (oldList == null) {
+                    newList = Collections.singletonList(providers);
+                } else {
+                    newList = new ArrayList<ProvidersPerBundle>(oldList.size() + 1);
+                    int idx = 0;
+                    while (idx < oldList.size() && oldList.get(idx).getBundleId() < providers.getBundleId()) {
+                        idx++;
+                    }
+                    newList.addAll(oldList);
+                    newList.add(idx, providers);
+                    newList = Collections.unmodifiableList(newList);
+                }
+                serviceToProviders.put(serviceName, newList);
+            }
+        }
+
+        private static void unlink(Map<String, List<ProvidersPerBundle>> serviceToProviders,
+                                   ProvidersPerBundle providers) {
+            for (String serviceName : providers.getServiceToProvidersMap().keySet()) {
+                List<ProvidersPerBundle> oldList = serviceToProviders.get(serviceName);
+                if (oldList == null) continue;
+                List<ProvidersPerBundle> newList = new ArrayList<ProvidersPerBundle>(oldList);
+                newList.remove(providers);
+                if (newList.isEmpty()) {
+                    serviceToProviders.remove(serviceName);
+                } else {
+                    serviceToProviders.put(serviceName, Collections.unmodifiableList(newList));
+                }
+            }
+        }
+    }
+
+    /**
+     * Provider classes resolved for a service class from a particular list of {@link ProvidersPerBundle}.
+     */
+    private static class ResolvedProviders {
+        private final List<ProvidersPerBundle> providersList;
+        private final List<Class> providerClasses;
+        private final long serviceBundleId;
+
+        ResolvedProviders(List<ProvidersPerBundle> providersList, List<Class> providerClasses, long serviceBundleId) {
+            this.providersList = providersList;
+            this.providerClasses = Collections.unmodifiableList(providerClasses);
+            this.serviceBundleId = serviceBundleId;
+        }
+
+        List<ProvidersPerBundle> getProvidersList() {
+            return providersList;
+        }
+
+        List<Class> getProviderClasses() {
+            return providerClasses;
+        }
+
+        /**
+         * @return true if either the service class or any of the provider classes comes from the given bundle
+         */
+        boolean dependsOn(long bundleId) {
+            if (serviceBundleId == bundleId) return true;
+            for (ProvidersPerBundle providersPerBundle : providersList) {
+                if (providersPerBundle.getBundleId() == bundleId) return true;
+            }
+            return false;
+        }
     }
 
     /**
-     * List of {@link ServiceLoaderImpl.ProvidersPerBundle}
-     * Synchronisation is handled by outer class.
+     * Cache of {@link ResolvedProviders} keyed by service class identity. Service classes are weakly referenced,
+     * so that the cache does not prevent them from being unloaded. Since provider classes may strongly reach
+     * their service class via their class loader, entries are also removed explicitly whenever a bundle
+     * they depend on is updated, uninstalled or refreshed.
      */
-    private static class ProvidersList {
-        // This list is sorted in ascending order of bundle id
-        private List<ProvidersPerBundle> allProviders = new LinkedList<ProvidersPerBundle>();
+    private static class ProviderClassesCache {
+        private final ConcurrentMap<ClassKey, ResolvedProviders> map = new ConcurrentHashMap<ClassKey, ResolvedProviders>();
+        private final ReferenceQueue<Class> queue = new ReferenceQueue<Class>();
+
+        /**
+         * Incremented on every invalidation, so that a value computed concurrently with
+         * an invalidation does not get cached.
+         */
+        private final AtomicLong invalidationCount = new AtomicLong();
+
+        ResolvedProviders get(Class serviceClass) {
+            return map.get(new ClassProbe(serviceClass));
+        }
+
+        /**
+         * @return a stamp to be passed to {@link #put} for a value that is about to be computed
+         */
+        long stamp() {
+            return invalidationCount.get();
+        }
+
+        void put(Class serviceClass, ResolvedProviders resolved, long stamp) {
+            expungeStaleEntries();
+            ClassKey key = new ClassKey(serviceClass, queue);
+            map.put(key, resolved);
+            if (invalidationCount.get() != stamp) {
+                map.remove(key, resolved);
+            }
+        }
 
-        void addProviders(ProvidersPerBundle providers) {
-            long bundleId = providers.getBundleId();
-            int idx = 0;
-            Iterator<ProvidersPerBundle> iterator = getAllProviders().iterator();
+        void invalidate(long bundleId) {
+            invalidationCount.incrementAndGet();
+            Iterator<ResolvedProviders> iterator = map.values().iterator();
             while (iterator.hasNext()) {
-                ProvidersPerBundle providersPerBundle = iterator.next();
-                if (providersPerBundle.getBundleId() > bundleId) {
-                    getAllProviders().add(idx, providers);
-                    return;
+                if (iterator.next().dependsOn(bundleId)) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        private void expungeStaleEntries() {
+            Object key;
+            while ((key = queue.poll()) != null) {
+                map.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Cache of provider instances keyed by service class and provider class, see {@link InstanceScope}.
+     * Entries are removed explicitly when the bundle defining either class is stopped, updated, uninstalled
+     * or refreshed. Entries of {@link InstanceScope#WEAK} instances are also removed once the instance is collected.
+     */
+    private static class ProviderInstancesCache {
+        private final ConcurrentMap<InstanceKey, CachedInstance> map = new ConcurrentHashMap<InstanceKey, CachedInstance>();
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+        /**
+         * Incremented on every invalidation, so that an instance made concurrently with
+         * an invalidation does not get cached.
+         */
+        private final AtomicLong invalidationCount = new AtomicLong();
+
+        Object get(Class serviceClass, Class providerClass) {
+            CachedInstance cached = map.get(new InstanceKey(serviceClass, providerClass));
+            return cached != null ? cached.get() : null;
+        }
+
+        /**
+         * @return a stamp to be passed to {@link #put} for an instance that is about to be made
+         */
+        long stamp() {
+            return invalidationCount.get();
+        }
+
+        /**
+         * @return the instance to be used, which is another one if a concurrent caller has cached it first
+         */
+        Object put(Class serviceClass, Class providerClass, Object instance, InstanceScope scope, long stamp) {
+            expungeStaleEntries();
+            InstanceKey key = new InstanceKey(serviceClass, providerClass);
+            CachedInstance cached = scope == InstanceScope.WEAK
+                    ? new WeakInstance(key, instance, queue) : new StrongInstance(instance);
+            while (true) {
+                CachedInstance existing = map.putIfAbsent(key, cached);
+                if (existing == null) {
+                    break;
                 }
+                Object existingInstance = existing.get();
+                if (existingInstance != null) {
+                    return existingInstance;
+                }
+                map.remove(key, existing);
+            }
+            if (invalidationCount.get() != stamp) {
+                map.remove(key, cached);
             }
-            getAllProviders().add(providers);
+            return instance;
         }
 
-        void removeProviders(long bundleId) {
-            Iterator<ProvidersPerBundle> iterator = getAllProviders().iterator();
+        void invalidate(long bundleId) {
+            invalidationCount.incrementAndGet();
+            Iterator<InstanceKey> iterator = map.keySet().iterator();
             while (iterator.hasNext()) {
-                ProvidersPerBundle providersPerBundle = iterator.next();
-                if (providersPerBundle.getBundleId() == bundleId) {
+                if (iterator.next().dependsOn(bundleId)) {
                     iterator.remove();
-                    return;
                 }
             }
         }
 
+        private void expungeStaleEntries() {
+            Object reference;
+            while ((reference = queue.poll()) != null) {
+                WeakInstance weakInstance = WeakInstance.class.cast(reference);
+                map.remove(weakInstance.key, weakInstance);
+            }
+        }
+    }
+
+    /**
+     * Service class and provider class, compared by identity. The classes are strongly referenced, as entries
+     * are removed when their bundles go away.
+     */
+    private static class InstanceKey {
+        private final Class serviceClass;
+        private final Class providerClass;
+
+        InstanceKey(Class serviceClass, Class providerClass) {
+            this.serviceClass = serviceClass;
+            this.providerClass = providerClass;
+        }
+
+        boolean dependsOn(long bundleId) {
+            return getBundleId(serviceClass) == bundleId || getBundleId(providerClass) == bundleId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(serviceClass) + System.identityHashCode(providerClass);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof InstanceKey)) return false;
+            InstanceKey other = InstanceKey.class.cast(obj);
+            return serviceClass == other.serviceClass && providerClass == other.providerClass;
+        }
+    }
+
+    private interface CachedInstance {
+        /**
+         * @return the instance, null if it has been garbage collected
+         */
+        Object get();
+    }
+
+    private static class StrongInstance implements CachedInstance {
+        private final Object instance;
+
+        StrongInstance(Object instance) {
+            this.instance = instance;
+        }
+
+        public Object get() {
+            return instance;
+        }
+    }
+
+    private static class WeakInstance extends WeakReference<Object> implements CachedInstance {
+        private final InstanceKey key;
+
+        WeakInstance(InstanceKey key, Object instance, ReferenceQueue<Object> queue) {
+            super(instance, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Weak reference to a class which compares by identity of the referent.
+     */
+    private static class ClassKey extends WeakReference<Class> {
+        private final int hash;
+
+        ClassKey(Class c, ReferenceQueue<Class> queue) {
+            super(c, queue);
+            hash = System.identityHashCode(c);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof ClassKey)) return false;
+            Class c = get();
+            return c != null && c == ClassKey.class.cast(obj).get();
+        }
+    }
+
+    /**
+     * Strong key to look up a {@link ClassKey}, so that a look up does not create a weak reference.
+     */
+    private static class ClassProbe {
+        private final Class c;
+
+        ClassProbe(Class c) {
+            this.c = c;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(c);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ClassKey && c == ClassKey.class.cast(obj).get();
+        }
+    }
+
+    /**
+     * Iterates over compatible provider classes of a service, loading the next class only when asked for it.
+     */
+    private class ProviderClassIterator implements Iterator<Class> {
+        private final Class serviceClass;
+        private final String serviceName;
+        private final long serviceBundleId;
+        private final Iterator<ProvidersPerBundle> providersIterator;
+        private Bundle bundle;
+        // false when the wiring of the current bundle shows that it is compatible
+        private boolean checkClassLoader;
+        private Iterator<String> providerNames = Collections.<String>emptyList().iterator();
+        private Class next;
+        // flight recorder event counting loaded classes, null if there is none
+        private final LocatorEvents.Lookup event;
+        // classes already loaded by bundle id and class name, null unless part of a batch
+        private final Map<Long, Map<String, Class>> loadedClasses;
+
+        ProviderClassIterator(Class serviceClass, List<ProvidersPerBundle> providersList, LocatorEvents.Lookup event,
+                              Map<Long, Map<String, Class>> loadedClasses) {
+            this.serviceClass = serviceClass;
+            this.serviceName = serviceClass.getName();
+            this.serviceBundleId = wiringChecker != null ? getBundleId(serviceClass) : -1;
+            this.providersIterator = providersList.iterator();
+            this.event = event;
+            this.loadedClasses = loadedClasses;
+        }
+
+        public boolean hasNext() {
+            while (next == null) {
+                if (providerNames.hasNext()) {
+                    String providerName = providerNames.next();
+                    if (loadFailures.get(bundle, providerName) != null) {
+                        continue; // Already failed and reported
+                    }
+                    try {
+                        final Class providerClass = loadProviderClass(providerName);
+                        if (!checkClassLoader || isCompatible(providerClass, serviceClass)) {
+                            next = providerClass;
+                        }
+                    } catch (ClassNotFoundException e) {
+                        statistics.classLoadFailed();
+                        loadFailures.add(bundle, serviceName, providerName, e);
+                    } catch (NoClassDefFoundError e) {
+                        // e.g., a super class can't be found
+                        statistics.classLoadFailed();
+                        loadFailures.add(bundle, serviceName, providerName, e);
+                    } catch (IllegalStateException e) {
+                        // The bundle got uninstalled, so none of its remaining providers can be loaded.
+                        providerNames = Collections.<String>emptyList().iterator();
+                    }
+                } else if (providersIterator.hasNext()) {
+                    ProvidersPerBundle providersPerBundle = providersIterator.next();
+                    bundle = bundleContext.getBundle(providersPerBundle.getBundleId());
+                    if (bundle != null) { // bundle may have been uninstalled
+                        WiringCompatibilityChecker.Result compatibility =
+                                checkWiring(bundle, serviceClass, serviceBundleId);
+                        if (compatibility != WiringCompatibilityChecker.Result.INCOMPATIBLE) {
+                            // Otherwise, skip the bundle without loading any of its classes.
+                            checkClassLoader = compatibility == WiringCompatibilityChecker.Result.UNKNOWN;
+                            providerNames = providersPerBundle.getProviderNames(serviceName).iterator();
+                        }
+                    }
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Class next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Class c = next;
+            next = null;
+            return c;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Class loadProviderClass(String providerName) throws ClassNotFoundException {
+            Map<String, Class> loadedByBundle = null;
+            if (loadedClasses != null) {
+                loadedByBundle = loadedClasses.get(bundle.getBundleId());
+                if (loadedByBundle == null) {
+                    loadedByBundle = new HashMap<String, Class>();
+                    loadedClasses.put(bundle.getBundleId(), loadedByBundle);
+                }
+                Class c = loadedByBundle.get(providerName);
+                if (c != null) {
+                    return c;
+                }
+            }
+            if (event != null) {
+                event.classLoaded();
+            }
+            Class c = loadClassSecured(bundle, providerName);
+            if (loadedByBundle != null) {
+                loadedByBundle.put(providerName, c);
+            }
+            return c;
+        }
+    }
+
+    private class BundleProviderDescriptor extends ProviderDescriptor {
+        private final Bundle bundle;
+        private final Class serviceClass;
+        private final boolean checkClassLoader;
+
+        BundleProviderDescriptor(String providerClassName, Bundle bundle, Class serviceClass, ClassMetadata metadata,
+                                 boolean checkClassLoader) {
+            super(providerClassName, bundle.getBundleId(), metadata);
+            this.bundle = bundle;
+            this.serviceClass = serviceClass;
+            this.checkClassLoader = checkClassLoader;
+        }
+
+        public Class loadProviderClass() throws ClassNotFoundException {
+            ProviderLoadFailure failure = loadFailures.get(bundle, getProviderClassName());
+            if (failure != null) {
+                throw new ClassNotFoundException(getProviderClassName(), failure.getCause());
+            }
+            final Class providerClass;
+            try {
+                providerClass = loadClassSecured(bundle, getProviderClassName());
+            } catch (ClassNotFoundException e) {
+                statistics.classLoadFailed();
+                loadFailures.add(bundle, serviceClass.getName(), getProviderClassName(), e);
+                throw e;
+            } catch (NoClassDefFoundError e) {
+                statistics.classLoadFailed();
+                loadFailures.add(bundle, serviceClass.getName(), getProviderClassName(), e);
+                throw e;
+            }
+            return !checkClassLoader || isCompatible(providerClass, serviceClass) ? providerClass : null;
+        }
+    }
+
+    /**
+     * Keeps the provider classes last delivered to a {@link ProviderListener} and delivers the difference whenever
+     * the index or the wiring of a bundle changes. All methods are synchronized, so that differences are computed
+     * and delivered one at a time.
+     */
+    private class ProviderSubscription<T> implements Subscription {
+        private final Class<T> serviceClass;
+        private final ProviderListener<T> listener;
+        private List<Class> providerClasses = Collections.emptyList();
+        private List<ProvidersPerBundle> providersList;
+        private boolean initialized;
+        // true when providers have been removed because of a refresh, until they are looked up again
+        private boolean stale;
+        private boolean cancelled;
+
+        ProviderSubscription(Class<T> serviceClass, ProviderListener<T> listener) {
+            this.serviceClass = serviceClass;
+            this.listener = listener;
+        }
+
+        synchronized void refresh() {
+            if (cancelled) {
+                return;
+            }
+            List<ProvidersPerBundle> newProvidersList = providersIndex.getProviders(serviceClass.getName());
+            if (initialized && !stale && newProvidersList == providersList) {
+                return;
+            }
+            List<Class> newProviderClasses = new ArrayList<Class>();
+            for (Class providerClass : lookupProviderClasses0(serviceClass, providersIndex, null, null)) {
+                newProviderClasses.add(providerClass);
+            }
+            providersList = newProvidersList;
+            stale = false;
+            List<Class> added = difference(newProviderClasses, providerClasses);
+            deliverRemoved(difference(providerClasses, newProviderClasses));
+            providerClasses = newProviderClasses;
+            if (!initialized || !added.isEmpty()) {
+                initialized = true;
+                try {
+                    listener.providersAdded(serviceClass, Collections.unmodifiableList(added));
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Provider listener " + listener + " failed", e);
+                }
+            }
+        }
+
+        /**
+         * Removes provider classes which depend on the given bundle right away. They are not looked up again until
+         * the bundle gets resolved, since loading classes would interfere with the ongoing refresh.
+         */
+        synchronized void bundleUnresolved(long bundleId) {
+            if (cancelled || !initialized) {
+                return;
+            }
+            List<Class> removed = new ArrayList<Class>();
+            for (Class providerClass : providerClasses) {
+                if (getBundleId(serviceClass) == bundleId || getBundleId(providerClass) == bundleId) {
+                    removed.add(providerClass);
+                }
+            }
+            if (!removed.isEmpty()) {
+                providerClasses = difference(providerClasses, removed);
+                stale = true;
+                deliverRemoved(removed);
+            }
+        }
+
+        public synchronized void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        private void deliverRemoved(List<Class> removed) {
+            if (removed.isEmpty()) {
+                return;
+            }
+            try {
+                listener.providersRemoved(serviceClass, Collections.unmodifiableList(removed));
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Provider listener " + listener + " failed", e);
+            }
+        }
+
+        /**
+         * @return classes in a which are not in b, in the order of a
+         */
+        private List<Class> difference(List<Class> a, List<Class> b) {
+            List<Class> result = new ArrayList<Class>();
+            for (Class c : a) {
+                if (!b.contains(c)) {
+                    result.add(c);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Instantiates providers using a {@link ProviderFactory} as the caller iterates over them.
+     * Providers for which the factory fails or returns null are skipped.
+     */
+    private class ProviderInstanceIterator<T> implements Iterator<T> {
+        private final Iterator<Class> providerClasses;
+        private final Class<T> serviceClass;
+        private final ProviderFactory<T> factory;
+        private final InstanceScope scope;
+        private T next;
+
         /**
-         * @return a list of {@link ProvidersPerBundle} sorted in ascending order of bundle id.
+         * Time when the look up started, 0 once the time taken to obtain the first provider has been recorded.
          */
-        public List<ProvidersPerBundle> getAllProviders() {
-            return allProviders;
+        private long startTime;
+
+        /**
+         * Flight recorder event of the look up, committed together with the statistics. Null if there is none.
+         */
+        private LocatorEvents.Lookup event;
+
+        ProviderInstanceIterator(Iterator<Class> providerClasses, Class<T> serviceClass, ProviderFactory<T> factory,
+                                 InstanceScope scope, long startTime, LocatorEvents.Lookup event) {
+            this.providerClasses = providerClasses;
+            this.serviceClass = serviceClass;
+            this.factory = factory;
+            this.scope = scope;
+            this.startTime = startTime;
+            this.event = event;
+        }
+
+        public boolean hasNext() {
+            if (startTime != 0) {
+                try {
+                    return hasNext0();
+                } finally {
+                    statistics.record(LOOKUP_PROVIDER_INSTANCES, startTime);
+                    startTime = 0;
+                    if (event != null) {
+                        event.commit();
+                        event = null;
+                    }
+                }
+            }
+            return hasNext0();
+        }
+
+        private boolean hasNext0() {
+            while (next == null && providerClasses.hasNext()) {
+                Class c = providerClasses.next();
+                try {
+                    final T providerInstance = makeProviderInstance(c);
+                    if (providerInstance != null) {
+                        next = providerInstance;
+                    } else {
+                        if (isDebugEnabled()) debug(factory + " returned null provider instance!!!");
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            return next != null;
+        }
+
+        private T makeProviderInstance(Class c) throws Exception {
+            if (scope == InstanceScope.NEW) {
+                return factory.make(c, serviceClass);
+            }
+            T providerInstance = (T) providerInstancesCache.get(serviceClass, c);
+            if (providerInstance == null) {
+                final long stamp = providerInstancesCache.stamp();
+                providerInstance = factory.make(c, serviceClass);
+                if (providerInstance != null) {
+                    providerInstance = (T) providerInstancesCache.put(serviceClass, c, providerInstance, scope, stamp);
+                }
+            }
+            return providerInstance;
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T t = next;
+            next = null;
+            return t;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
     }
 
@@ -377,16 +2094,23 @@ public final class ServiceLoaderImpl extends org.glassfish.hk2.osgiresourcelocat
         }
     }
 
+    /**
+     * @return true if {@link #debug(String, Throwable)} logs anything, callers building messages should check it first
+     */
+    private boolean isDebugEnabled() {
+        return debug || logger.isLoggable(Level.FINE);
+    }
+
     private void debug(String s) {
-        if (Boolean.valueOf(bundleContext.getProperty("org.glassfish.hk2.osgiresourcelocator.debug"))) {
-            System.out.println("org.glassfish.hk2.osgiresourcelocator:DEBUG: " + s);
-        }
+        debug(s, null);
     }
 
+    /**
+     * Logs at FINE, or at INFO if the legacy debug property is set, so that it still shows without logging setup.
+     */
     private void debug(String s, Throwable t) {
-        if (Boolean.valueOf(bundleContext.getProperty("org.glassfish.hk2.osgiresourcelocator.debug"))) {
-            System.out.println("org.glassfish.hk2.osgiresourcelocator:DEBUG: " + s);
-            t.printStackTrace(System.out);
+        if (isDebugEnabled()) {
+            logger.log(debug ? Level.INFO : Level.FINE, s, t);
         }
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides from the wiring of a provider bundle, without loading any class, whether the provider bundle sees
+ * the same service package as the caller, i.e., whether its package import is wired to the bundle which has
+ * defined the service class. Whenever the wiring does not allow a definite answer, e.g., because the bundle is
+ * not resolved yet, sees the package through Require-Bundle or is not wired for it at all, the answer is
+ * {@link Result#UNKNOWN} and the caller has to fall back on loading classes.
+ *
+ * Package wires are cached per bundle until the bundle gets a new wiring.
+ */
+final class WiringCompatibilityChecker {
+
+    enum Result {
+        COMPATIBLE, INCOMPATIBLE, UNKNOWN
+    }
+
+    private final ConcurrentMap<Long, PackageWires> cache = new ConcurrentHashMap<Long, PackageWires>();
+
+    /**
+     * @param serviceBundleId id of the bundle which has defined the service class, -1 if it is not defined by a bundle
+     */
+    Result check(Bundle providerBundle, Class serviceClass, long serviceBundleId) {
+        final String serviceName = serviceClass.getName();
+        if (serviceName.startsWith("java.")) {
+            // Always loaded by the boot loader
+            return Result.COMPATIBLE;
+        }
+        int idx = serviceName.lastIndexOf('.');
+        if (serviceBundleId < 0 || idx < 0) {
+            return Result.UNKNOWN;
+        }
+        BundleWiring wiring = getWiringSecured(providerBundle);
+        if (wiring == null) {
+            return Result.UNKNOWN;
+        }
+        PackageWires wires = cache.get(providerBundle.getBundleId());
+        if (wires == null || wires.wiring != wiring) {
+            wires = new PackageWires(wiring);
+            cache.put(providerBundle.getBundleId(), wires);
+        }
+        long exporterId = wires.getExporterId(serviceName.substring(0, idx));
+        if (exporterId < 0) {
+            // Not imported: the provider bundle sees its own copy, if any.
+            return providerBundle.getBundleId() == serviceBundleId ? Result.COMPATIBLE : Result.UNKNOWN;
+        }
+        return exporterId == serviceBundleId ? Result.COMPATIBLE : Result.INCOMPATIBLE;
+    }
+
+    /**
+     * Forgets what is known about the wiring of the given bundle, to be called when it gets refreshed.
+     */
+    void invalidate(long bundleId) {
+        cache.remove(bundleId);
+    }
+
+    private static BundleWiring getWiringSecured(final Bundle bundle) {
+        try {
+            if (System.getSecurityManager() != null) {
+                return AccessController.doPrivileged(new PrivilegedAction<BundleWiring>() {
+                    public BundleWiring run() {
+                        return bundle.adapt(BundleWiring.class);
+                    }
+                });
+            }
+            return bundle.adapt(BundleWiring.class);
+        } catch (IllegalStateException e) {
+            // uninstalled
+            return null;
+        }
+    }
+
+    /**
+     * Package name to exporting bundle id for a particular wiring.
+     */
+    private static class PackageWires {
+        final BundleWiring wiring;
+        private final ConcurrentMap<String, Long> exporterIds = new ConcurrentHashMap<String, Long>();
+        private final boolean dynamicImports;
+
+        PackageWires(BundleWiring wiring) {
+            this.wiring = wiring;
+            addWires();
+            boolean dynamic = false;
+            List<BundleRequirement> requirements = wiring.getRequirements(PackageNamespace.PACKAGE_NAMESPACE);
+            if (requirements != null) {
+                for (BundleRequirement requirement : requirements) {
+                    if (PackageNamespace.RESOLUTION_DYNAMIC.equals(
+                            requirement.getDirectives().get(PackageNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE))) {
+                        dynamic = true;
+                        break;
+                    }
+                }
+            }
+            this.dynamicImports = dynamic;
+        }
+
+        /**
+         * @return id of the bundle the package import is wired to, -1 if the package is not imported
+         */
+        long getExporterId(String packageName) {
+            Long exporterId = exporterIds.get(packageName);
+            if (exporterId == null && dynamicImports) {
+                // A dynamic import may have been wired since we last looked.
+                addWires();
+                exporterId = exporterIds.get(packageName);
+            }
+            return exporterId != null ? exporterId : -1;
+        }
+
+        private void addWires() {
+            List<BundleWire> wires = wiring.getRequiredWires(PackageNamespace.PACKAGE_NAMESPACE);
+            if (wires == null) {
+                // The wiring is no longer in use.
+                return;
+            }
+            for (BundleWire wire : wires) {
+                Object packageName = wire.getCapability().getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE);
+                if (packageName instanceof String) {
+                    exporterIds.putIfAbsent((String) packageName, wire.getProviderWiring().getBundle().getBundleId());
+                }
+            }
+        }
+    }
+}